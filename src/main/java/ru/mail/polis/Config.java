@@ -2,7 +2,221 @@ package ru.mail.polis;
 
 import java.nio.file.Path;
 
+// Flushed tables are compacted in the background with the compactionStrategy.
+// LEVELED: level 0 holds flushed tables and is merged into level 1 when it has levelZeroCompactionTrigger tables,
+// every next level is levelSizeMultiplier times larger than the previous one (level 1 holds up to levelOneMaxBytes),
+// compaction outputs are split into tables of flushThresholdBytes.
+// SIZE_TIERED: from sizeTieredMinThreshold to sizeTieredMaxThreshold adjacent tables of similar size
+// (within sizeTieredBucketRatio of each other) are merged into one, the number of tables is kept
+// below sizeTieredMaxThreshold.
+// Both strategies also rewrite a table whose share of tombstones reaches tombstoneCompactionRatio,
+// tombstones are dropped by compactions once no older table may hold the deleted key.
+// Background flushes and compactions write at most backgroundWriteBytesPerSecond,
+// the rate goes down while foreground reads slow down.
+// A full memtable is queued for flush and replaced with an empty one. Writers are delayed by writeSlowdownMicros
+// (0 for no delay) once half of the maxFlushQueueSize memtables are queued, and are blocked while the queue is full.
+// Writes are logged to survive a crash unless walDurability is NONE: with ASYNC the log is forced
+// every walSyncIntervalMillis, with SYNC an upsert returns once the log is forced (concurrent writes share a force).
+// Configs are supposed to be made with builder(), which starts with the defaults below,
+// the canonical constructor takes every parameter by position.
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        double bloomFilterFalsePositiveRate,
+        boolean blockCompression,
+        long valueSeparationThresholdBytes,
+        int levelZeroCompactionTrigger,
+        long levelOneMaxBytes,
+        int levelSizeMultiplier,
+        CompactionStrategy compactionStrategy,
+        int sizeTieredMinThreshold,
+        int sizeTieredMaxThreshold,
+        double sizeTieredBucketRatio,
+        double tombstoneCompactionRatio,
+        long backgroundWriteBytesPerSecond,
+        int maxFlushQueueSize,
+        long writeSlowdownMicros,
+        WalDurability walDurability,
+        long walSyncIntervalMillis) {
+
+    public static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    public static final long NO_VALUE_SEPARATION = Long.MAX_VALUE;
+    public static final int DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER = 4;
+    public static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+    public static final int DEFAULT_SIZE_TIERED_MIN_THRESHOLD = 4;
+    public static final int DEFAULT_SIZE_TIERED_MAX_THRESHOLD = 32;
+    public static final double DEFAULT_SIZE_TIERED_BUCKET_RATIO = 2.0;
+    public static final double DEFAULT_TOMBSTONE_COMPACTION_RATIO = 0.2;
+    public static final long NO_WRITE_RATE_LIMIT = Long.MAX_VALUE;
+    public static final int DEFAULT_MAX_FLUSH_QUEUE_SIZE = 4;
+    public static final long NO_WRITE_SLOWDOWN = 0;
+    public static final long DEFAULT_WAL_SYNC_INTERVAL_MILLIS = 10;
+
+    public Config(Path basePath, long flushThresholdBytes) {
+        this(
+                basePath,
+                flushThresholdBytes,
+                DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE,
+                false,
+                NO_VALUE_SEPARATION,
+                DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER,
+                flushThresholdBytes * DEFAULT_LEVEL_SIZE_MULTIPLIER,
+                DEFAULT_LEVEL_SIZE_MULTIPLIER,
+                CompactionStrategy.LEVELED,
+                DEFAULT_SIZE_TIERED_MIN_THRESHOLD,
+                DEFAULT_SIZE_TIERED_MAX_THRESHOLD,
+                DEFAULT_SIZE_TIERED_BUCKET_RATIO,
+                DEFAULT_TOMBSTONE_COMPACTION_RATIO,
+                NO_WRITE_RATE_LIMIT,
+                DEFAULT_MAX_FLUSH_QUEUE_SIZE,
+                NO_WRITE_SLOWDOWN,
+                WalDurability.NONE,
+                DEFAULT_WAL_SYNC_INTERVAL_MILLIS
+        );
+    }
+
+    public static Builder builder(Path basePath, long flushThresholdBytes) {
+        return new Builder(basePath, flushThresholdBytes);
+    }
+
+    public static final class Builder {
+        private final Path basePath;
+        private final long flushThresholdBytes;
+        private double bloomFilterFalsePositiveRate = DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE;
+        private boolean blockCompression;
+        private long valueSeparationThresholdBytes = NO_VALUE_SEPARATION;
+        private int levelZeroCompactionTrigger = DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER;
+        // levelSizeMultiplier times flushThresholdBytes unless set
+        private long levelOneMaxBytes = -1;
+        private int levelSizeMultiplier = DEFAULT_LEVEL_SIZE_MULTIPLIER;
+        private CompactionStrategy compactionStrategy = CompactionStrategy.LEVELED;
+        private int sizeTieredMinThreshold = DEFAULT_SIZE_TIERED_MIN_THRESHOLD;
+        private int sizeTieredMaxThreshold = DEFAULT_SIZE_TIERED_MAX_THRESHOLD;
+        private double sizeTieredBucketRatio = DEFAULT_SIZE_TIERED_BUCKET_RATIO;
+        private double tombstoneCompactionRatio = DEFAULT_TOMBSTONE_COMPACTION_RATIO;
+        private long backgroundWriteBytesPerSecond = NO_WRITE_RATE_LIMIT;
+        private int maxFlushQueueSize = DEFAULT_MAX_FLUSH_QUEUE_SIZE;
+        private long writeSlowdownMicros = NO_WRITE_SLOWDOWN;
+        private WalDurability walDurability = WalDurability.NONE;
+        private long walSyncIntervalMillis = DEFAULT_WAL_SYNC_INTERVAL_MILLIS;
+
+        private Builder(Path basePath, long flushThresholdBytes) {
+            this.basePath = basePath;
+            this.flushThresholdBytes = flushThresholdBytes;
+        }
+
+        public Builder bloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+            this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+            return this;
+        }
+
+        public Builder blockCompression(boolean blockCompression) {
+            this.blockCompression = blockCompression;
+            return this;
+        }
+
+        public Builder valueSeparationThresholdBytes(long valueSeparationThresholdBytes) {
+            this.valueSeparationThresholdBytes = valueSeparationThresholdBytes;
+            return this;
+        }
+
+        public Builder levelZeroCompactionTrigger(int levelZeroCompactionTrigger) {
+            this.levelZeroCompactionTrigger = levelZeroCompactionTrigger;
+            return this;
+        }
+
+        public Builder levelOneMaxBytes(long levelOneMaxBytes) {
+            this.levelOneMaxBytes = levelOneMaxBytes;
+            return this;
+        }
+
+        public Builder levelSizeMultiplier(int levelSizeMultiplier) {
+            this.levelSizeMultiplier = levelSizeMultiplier;
+            return this;
+        }
+
+        public Builder compactionStrategy(CompactionStrategy compactionStrategy) {
+            this.compactionStrategy = compactionStrategy;
+            return this;
+        }
+
+        public Builder sizeTieredMinThreshold(int sizeTieredMinThreshold) {
+            this.sizeTieredMinThreshold = sizeTieredMinThreshold;
+            return this;
+        }
+
+        public Builder sizeTieredMaxThreshold(int sizeTieredMaxThreshold) {
+            this.sizeTieredMaxThreshold = sizeTieredMaxThreshold;
+            return this;
+        }
+
+        public Builder sizeTieredBucketRatio(double sizeTieredBucketRatio) {
+            this.sizeTieredBucketRatio = sizeTieredBucketRatio;
+            return this;
+        }
+
+        public Builder tombstoneCompactionRatio(double tombstoneCompactionRatio) {
+            this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+            return this;
+        }
+
+        public Builder backgroundWriteBytesPerSecond(long backgroundWriteBytesPerSecond) {
+            this.backgroundWriteBytesPerSecond = backgroundWriteBytesPerSecond;
+            return this;
+        }
+
+        public Builder maxFlushQueueSize(int maxFlushQueueSize) {
+            this.maxFlushQueueSize = maxFlushQueueSize;
+            return this;
+        }
+
+        public Builder writeSlowdownMicros(long writeSlowdownMicros) {
+            this.writeSlowdownMicros = writeSlowdownMicros;
+            return this;
+        }
+
+        public Builder walDurability(WalDurability walDurability) {
+            this.walDurability = walDurability;
+            return this;
+        }
+
+        public Builder walSyncIntervalMillis(long walSyncIntervalMillis) {
+            this.walSyncIntervalMillis = walSyncIntervalMillis;
+            return this;
+        }
+
+        public Config build() {
+            return new Config(
+                    basePath,
+                    flushThresholdBytes,
+                    bloomFilterFalsePositiveRate,
+                    blockCompression,
+                    valueSeparationThresholdBytes,
+                    levelZeroCompactionTrigger,
+                    levelOneMaxBytes < 0 ? flushThresholdBytes * levelSizeMultiplier : levelOneMaxBytes,
+                    levelSizeMultiplier,
+                    compactionStrategy,
+                    sizeTieredMinThreshold,
+                    sizeTieredMaxThreshold,
+                    sizeTieredBucketRatio,
+                    tombstoneCompactionRatio,
+                    backgroundWriteBytesPerSecond,
+                    maxFlushQueueSize,
+                    writeSlowdownMicros,
+                    walDurability,
+                    walSyncIntervalMillis
+            );
+        }
+    }
+
+    public enum CompactionStrategy {
+        LEVELED,
+        SIZE_TIERED
+    }
+
+    public enum WalDurability {
+        NONE,
+        ASYNC,
+        SYNC
+    }
 }
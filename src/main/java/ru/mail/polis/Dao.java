@@ -2,6 +2,7 @@ package ru.mail.polis;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 
 public interface Dao<D, E extends Entry<D>> extends Closeable {
@@ -64,6 +65,17 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
      */
     void upsert(E entry);
 
+    /**
+     * Inserts or replaces entries as a whole: readers see either all of them or none.
+     * Note: default implementation upserts them one by one, so it is not atomic.
+     * @param entries elements to upsert, the later one wins for equal keys
+     */
+    default void upsertBatch(Collection<E> entries) {
+        for (E entry : entries) {
+            upsert(entry);
+        }
+    }
+
     /**
      * Persists data (no-op by default).
      */
@@ -0,0 +1,448 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryHandles;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Entry;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Lock-free sorted map of memtable records living in a MemoryArena.
+// Nodes, their towers, keys and values are all off-heap and linked by arena addresses updated with CAS,
+// so an insert leaves nothing on the heap and the GC never walks the list.
+// Nodes are never removed: an overwrite pushes a new value record and a deletion is a tombstone,
+// which keeps insertion a plain CAS of the predecessor links, level 0 first.
+// Every value record carries the sequence of its write and links the previous one, so a reader
+// taking a snapshot skips the records of writes with greater sequences, see MemorySegmentDao.upsertBatch().
+// Records of a failed batch are aborted: they stay linked but are never seen, whatever the snapshot.
+// Records of a node are linked in the order of their writes in the write-ahead log, the latest first:
+// a write which was logged earlier but came to the list later is linked below the later one,
+// so the list keeps the value the log replays to.
+// node: value/keySize/height/next[height]/key/initial value record
+// value record: sequence/order/previous/valueSize/value, valueSize is -1 for a tombstone
+final class ArenaSkipList {
+
+    private static final VarHandle LONG = MemoryHandles.varHandle(long.class, ByteOrder.nativeOrder());
+
+    private static final int MAX_HEIGHT = 16;
+    // a node gets every next level with probability 1/4
+    private static final int LEVEL_BITS = 2;
+    // the head is the very first allocation of the arena, so no node may have its address
+    private static final long NIL = 0;
+
+    private static final long VALUE_OFFSET = 0;
+    private static final long KEY_SIZE_OFFSET = Long.BYTES;
+    private static final long HEIGHT_OFFSET = KEY_SIZE_OFFSET + Integer.BYTES;
+    private static final long NEXT_OFFSET = HEIGHT_OFFSET + Integer.BYTES;
+
+    private static final long SEQUENCE_OFFSET = 0;
+    private static final long ORDER_OFFSET = Long.BYTES;
+    private static final long PREVIOUS_OFFSET = Long.BYTES * 2;
+    private static final long VALUE_SIZE_OFFSET = Long.BYTES * 3;
+    private static final long VALUE_RECORD_HEADER_SIZE = Long.BYTES * 4;
+    // sequence of an aborted record
+    private static final long ABORTED = -1;
+
+    private final MemoryArena arena;
+    private final long head;
+    private final AtomicInteger size = new AtomicInteger();
+
+    ArenaSkipList(long expectedBytes) {
+        this.arena = new MemoryArena(expectedBytes);
+        this.head = arena.allocate(NEXT_OFFSET + (long) Long.BYTES * MAX_HEIGHT);
+        if (head != NIL) {
+            throw new IllegalStateException("Head must be the first allocation");
+        }
+        MemoryAccess.setIntAtOffset(arena.slab(head), MemoryArena.offset(head) + HEIGHT_OFFSET, MAX_HEIGHT);
+    }
+
+    // the value is null for a tombstone, the write is seen by snapshots not less than the sequence,
+    // the order is the position of the write in the log, writes of equal orders are linked as they come;
+    // returns the value record for abort()
+    long put(MemorySegment key, MemorySegment value, long sequence, long order) {
+        long[] preds = new long[MAX_HEIGHT];
+        long[] succs = new long[MAX_HEIGHT];
+        if (find(key, preds, succs)) {
+            long record = allocateValue(value, sequence, order);
+            pushValue(succs[0], record);
+            return record;
+        }
+
+        int height = randomHeight();
+        long node = allocateNode(key, value, sequence, order, height);
+        // read before the node is published, other writes may be linked above it after
+        long record = value(node);
+        while (true) {
+            setNext(node, 0, succs[0]);
+            if (casNext(preds[0], 0, succs[0], node)) {
+                break;
+            }
+            // the key may be inserted meanwhile, the node is left unlinked then
+            if (findAtLevel(key, 0, preds, succs)) {
+                pushValue(succs[0], record);
+                return record;
+            }
+        }
+        size.incrementAndGet();
+
+        // the node is already visible, upper levels only speed up the search
+        for (int level = 1; level < height; level++) {
+            while (true) {
+                setNext(node, level, succs[level]);
+                if (casNext(preds[level], level, succs[level], node)) {
+                    break;
+                }
+                findAtLevel(key, level, preds, succs);
+            }
+        }
+        return record;
+    }
+
+    // hides the value record of a write which is not to be seen, supposed to be called before its sequence
+    // is published, so no reader relies on it; the node of a key with no other records is left empty
+    void abort(long valueAddress) {
+        LONG.setVolatile(arena.slab(valueAddress), MemoryArena.offset(valueAddress) + SEQUENCE_OFFSET, ABORTED);
+    }
+
+    // null if the key has no write seen by the snapshot
+    Entry<MemorySegment> get(MemorySegment key, long snapshot) {
+        long node = ceiling(key);
+        if (node == NIL || compareKey(node, key) != 0) {
+            return null;
+        }
+        long value = visibleValue(node, snapshot);
+        return value == NIL ? null : entry(node, value);
+    }
+
+    // from is inclusive, to is exclusive, null means no bound
+    // keys with no write seen by the snapshot are skipped
+    Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to, long snapshot) {
+        long first = from == null ? next(head, 0) : ceiling(from);
+        return new Iterator<>() {
+            private long node = first;
+            private long value = skipInvisible();
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL && (to == null || compareKey(node, to) < 0);
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<MemorySegment> entry = entry(node, value);
+                node = ArenaSkipList.this.next(node, 0);
+                value = skipInvisible();
+                return entry;
+            }
+
+            private long skipInvisible() {
+                while (node != NIL) {
+                    long visible = visibleValue(node, snapshot);
+                    if (visible != NIL) {
+                        return visible;
+                    }
+                    node = ArenaSkipList.this.next(node, 0);
+                }
+                return NIL;
+            }
+        };
+    }
+
+    // see EntryCursor, keys and values are exposed in place in the arena
+    EntryCursor cursor(MemorySegment from, MemorySegment to, long snapshot) {
+        return new Cursor(from == null ? next(head, 0) : ceiling(from), to, snapshot);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return next(head, 0) == NIL;
+    }
+
+    // memory taken by the list, overwritten values and unlinked nodes included
+    long byteSize() {
+        return arena.allocatedBytes();
+    }
+
+    // frees the whole list, entries returned before are not accessible after
+    void close() {
+        arena.close();
+    }
+
+    private final class Cursor implements EntryCursor {
+        private final MemorySegment to;
+        private final long snapshot;
+        private long node;
+        private boolean started;
+
+        private MemorySegment keyData;
+        private long keyOffset;
+        private long keySize;
+        private MemorySegment valueData;
+        private long valueOffset;
+        private long valueSize;
+
+        Cursor(long first, MemorySegment to, long snapshot) {
+            this.node = first;
+            this.to = to;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean advance() {
+            if (started && node != NIL) {
+                node = next(node, 0);
+            }
+            started = true;
+            for (; node != NIL; node = next(node, 0)) {
+                keyData = arena.slab(node);
+                long offset = MemoryArena.offset(node);
+                int height = MemoryAccess.getIntAtOffset(keyData, offset + HEIGHT_OFFSET);
+                keyOffset = offset + NEXT_OFFSET + (long) Long.BYTES * height;
+                keySize = MemoryAccess.getIntAtOffset(keyData, offset + KEY_SIZE_OFFSET);
+                if (to != null
+                        && MemorySegmentComparator.compare(keyData, keyOffset, keySize, to, 0, to.byteSize()) >= 0) {
+                    node = NIL;
+                    return false;
+                }
+                long value = visibleValue(node, snapshot);
+                if (value != NIL) {
+                    valueData = arena.slab(value);
+                    valueOffset = MemoryArena.offset(value) + VALUE_RECORD_HEADER_SIZE;
+                    valueSize = MemoryAccess.getLongAtOffset(valueData, MemoryArena.offset(value) + VALUE_SIZE_OFFSET);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public MemorySegment keyData() {
+            return keyData;
+        }
+
+        @Override
+        public long keyOffset() {
+            return keyOffset;
+        }
+
+        @Override
+        public long keySize() {
+            return keySize;
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return valueSize == -1;
+        }
+
+        @Override
+        public MemorySegment valueData() {
+            return valueData;
+        }
+
+        @Override
+        public long valueOffset() {
+            return valueOffset;
+        }
+
+        @Override
+        public long valueSize() {
+            return valueSize;
+        }
+    }
+
+    // fills the predecessors and the successors of the key at every level,
+    // returns whether the level 0 successor holds the key
+    private boolean find(MemorySegment key, long[] preds, long[] succs) {
+        preds[MAX_HEIGHT - 1] = head;
+        boolean found = false;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            if (level < MAX_HEIGHT - 1) {
+                preds[level] = preds[level + 1];
+            }
+            found = findAtLevel(key, level, preds, succs);
+        }
+        return found;
+    }
+
+    // moves the predecessor at the level forward, nodes are never removed so it stays valid
+    private boolean findAtLevel(MemorySegment key, int level, long[] preds, long[] succs) {
+        long pred = preds[level];
+        long next = next(pred, level);
+        int compare = 1;
+        while (next != NIL && (compare = compareKey(next, key)) < 0) {
+            pred = next;
+            next = next(pred, level);
+        }
+        preds[level] = pred;
+        succs[level] = next;
+        return next != NIL && compare == 0;
+    }
+
+    // the first node with a key greater than or equal to the given one
+    private long ceiling(MemorySegment key) {
+        long pred = head;
+        long next = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(pred, level);
+            while (next != NIL && compareKey(next, key) < 0) {
+                pred = next;
+                next = next(pred, level);
+            }
+        }
+        return next;
+    }
+
+    private long allocateNode(MemorySegment key, MemorySegment value, long sequence, long order, int height) {
+        long keyOffset = NEXT_OFFSET + (long) Long.BYTES * height;
+        long valueOffset = align(keyOffset + key.byteSize());
+        long node = arena.allocate(valueOffset + valueRecordSize(value));
+        MemorySegment slab = arena.slab(node);
+        long offset = MemoryArena.offset(node);
+        MemoryAccess.setIntAtOffset(slab, offset + KEY_SIZE_OFFSET, (int) key.byteSize());
+        MemoryAccess.setIntAtOffset(slab, offset + HEIGHT_OFFSET, height);
+        slab.asSlice(offset + keyOffset, key.byteSize()).copyFrom(key);
+        writeValue(slab, offset + valueOffset, value, sequence, order);
+        // the node is published by the CAS of the predecessor link
+        MemoryAccess.setLongAtOffset(slab, offset + VALUE_OFFSET, node + valueOffset);
+        return node;
+    }
+
+    private long allocateValue(MemorySegment value, long sequence, long order) {
+        long address = arena.allocate(valueRecordSize(value));
+        writeValue(arena.slab(address), MemoryArena.offset(address), value, sequence, order);
+        return address;
+    }
+
+    private static long valueRecordSize(MemorySegment value) {
+        return VALUE_RECORD_HEADER_SIZE + (value == null ? 0 : value.byteSize());
+    }
+
+    private static void writeValue(MemorySegment slab, long offset, MemorySegment value, long sequence, long order) {
+        MemoryAccess.setLongAtOffset(slab, offset + SEQUENCE_OFFSET, sequence);
+        MemoryAccess.setLongAtOffset(slab, offset + ORDER_OFFSET, order);
+        if (value == null) {
+            MemoryAccess.setLongAtOffset(slab, offset + VALUE_SIZE_OFFSET, -1);
+            return;
+        }
+        MemoryAccess.setLongAtOffset(slab, offset + VALUE_SIZE_OFFSET, value.byteSize());
+        slab.asSlice(offset + VALUE_RECORD_HEADER_SIZE, value.byteSize()).copyFrom(value);
+    }
+
+    // the latest value record seen by the snapshot, NIL if there is none
+    // (the head is a node, so no value record has its address)
+    private long visibleValue(long node, long snapshot) {
+        long value = value(node);
+        while (value != NIL) {
+            MemorySegment slab = arena.slab(value);
+            long offset = MemoryArena.offset(value);
+            long sequence = (long) LONG.getAcquire(slab, offset + SEQUENCE_OFFSET);
+            if (sequence <= snapshot && sequence != ABORTED) {
+                return value;
+            }
+            value = (long) LONG.getAcquire(slab, offset + PREVIOUS_OFFSET);
+        }
+        return NIL;
+    }
+
+    private Entry<MemorySegment> entry(long node, long valueAddress) {
+        MemorySegment valueSlab = arena.slab(valueAddress);
+        long valueOffset = MemoryArena.offset(valueAddress);
+        long valueSize = MemoryAccess.getLongAtOffset(valueSlab, valueOffset + VALUE_SIZE_OFFSET);
+        return new BaseEntry<>(
+                key(node),
+                valueSize == -1 ? null : valueSlab.asSlice(valueOffset + VALUE_RECORD_HEADER_SIZE, valueSize)
+        );
+    }
+
+    private MemorySegment key(long node) {
+        MemorySegment slab = arena.slab(node);
+        long offset = MemoryArena.offset(node);
+        int height = MemoryAccess.getIntAtOffset(slab, offset + HEIGHT_OFFSET);
+        int keySize = MemoryAccess.getIntAtOffset(slab, offset + KEY_SIZE_OFFSET);
+        return slab.asSlice(offset + NEXT_OFFSET + (long) Long.BYTES * height, keySize);
+    }
+
+    // reads the key where it lies, a search compares with many nodes and a slice per node would be garbage
+    private int compareKey(long node, MemorySegment key) {
+        MemorySegment slab = arena.slab(node);
+        long offset = MemoryArena.offset(node);
+        int height = MemoryAccess.getIntAtOffset(slab, offset + HEIGHT_OFFSET);
+        int keySize = MemoryAccess.getIntAtOffset(slab, offset + KEY_SIZE_OFFSET);
+        long keyOffset = offset + NEXT_OFFSET + (long) Long.BYTES * height;
+        return MemorySegmentComparator.compare(slab, keyOffset, keySize, key, 0, key.byteSize());
+    }
+
+    private long value(long node) {
+        return (long) LONG.getAcquire(arena.slab(node), MemoryArena.offset(node) + VALUE_OFFSET);
+    }
+
+    // links the value record before the first record of the node with an order not greater than its own,
+    // which is the latest one unless a later write got there first, the previous ones stay for older snapshots
+    private void pushValue(long node, long valueAddress) {
+        MemorySegment valueSlab = arena.slab(valueAddress);
+        long valueOffset = MemoryArena.offset(valueAddress);
+        long order = MemoryAccess.getLongAtOffset(valueSlab, valueOffset + ORDER_OFFSET);
+        // the value link of the node or the previous link of a record, records are never unlinked
+        MemorySegment linkSlab = arena.slab(node);
+        long linkOffset = MemoryArena.offset(node) + VALUE_OFFSET;
+        while (true) {
+            long next = (long) LONG.getAcquire(linkSlab, linkOffset);
+            if (next != NIL && order(next) > order) {
+                linkSlab = arena.slab(next);
+                linkOffset = MemoryArena.offset(next) + PREVIOUS_OFFSET;
+                continue;
+            }
+            MemoryAccess.setLongAtOffset(valueSlab, valueOffset + PREVIOUS_OFFSET, next);
+            if (LONG.compareAndSet(linkSlab, linkOffset, next, valueAddress)) {
+                return;
+            }
+        }
+    }
+
+    private long order(long valueAddress) {
+        return MemoryAccess.getLongAtOffset(arena.slab(valueAddress), MemoryArena.offset(valueAddress) + ORDER_OFFSET);
+    }
+
+    private long next(long node, int level) {
+        return (long) LONG.getAcquire(arena.slab(node), nextOffset(node, level));
+    }
+
+    private void setNext(long node, int level, long next) {
+        MemoryAccess.setLongAtOffset(arena.slab(node), nextOffset(node, level), next);
+    }
+
+    private boolean casNext(long node, int level, long expected, long next) {
+        return LONG.compareAndSet(arena.slab(node), nextOffset(node, level), expected, next);
+    }
+
+    private static long nextOffset(long node, int level) {
+        return MemoryArena.offset(node) + NEXT_OFFSET + (long) Long.BYTES * level;
+    }
+
+    private static int randomHeight() {
+        int random = ThreadLocalRandom.current().nextInt();
+        int height = 1;
+        while (height < MAX_HEIGHT && (random & ((1 << LEVEL_BITS) - 1)) == 0) {
+            random >>>= LEVEL_BITS;
+            height++;
+        }
+        return height;
+    }
+
+    private static long align(long offset) {
+        return (offset + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
@@ -0,0 +1,170 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Lays out records into prefix compressed blocks, see SSTable for the block structure.
+// Every block is built in a heap buffer and then passed (possibly compressed) to the output.
+final class BlockEncoder {
+
+    private final Output output;
+    private final LzCodec codec;
+    private long offset;
+
+    private byte[] block = new byte[(int) SSTable.BLOCK_SIZE];
+    private MemorySegment blockSegment = MemorySegment.ofArray(block);
+    private byte[] compressed = new byte[0];
+    private final byte[] blockHeader = new byte[Integer.BYTES];
+    private int blockSize;
+    private int recordsInBlock;
+    private MemorySegment previousKey;
+    private int[] restarts = new int[16];
+    private int restartsCount;
+
+    BlockEncoder(Output output, long offset, boolean compress) {
+        this.output = output;
+        this.offset = offset;
+        this.codec = compress ? new LzCodec() : null;
+    }
+
+    // returns true if the entry starts a new block
+    // value is written as a pointer to the value log if one is given
+    boolean add(Entry<MemorySegment> entry, ValueLog.Pointer pointer) throws IOException {
+        MemorySegment key = entry.key();
+        long maxRecordSize = maxRecordSize(entry, pointer);
+        boolean newBlock = recordsInBlock == 0
+                || blockSize + trailerSize(restartsCount + 1) + maxRecordSize > SSTable.BLOCK_SIZE;
+        if (newBlock && recordsInBlock > 0) {
+            finishBlock();
+        }
+        ensureCapacity(blockSize + maxRecordSize + trailerSize(restartsCount + 1));
+
+        int shared = 0;
+        if (recordsInBlock % SSTable.RESTART_INTERVAL == 0) {
+            addRestart(blockSize);
+        } else {
+            long mismatch = previousKey.mismatch(key);
+            shared = (int) (mismatch == -1 ? key.byteSize() : mismatch);
+        }
+
+        long suffixSize = key.byteSize() - shared;
+        MemoryAccess.setIntAtOffset(blockSegment, blockSize, shared);
+        MemoryAccess.setIntAtOffset(blockSegment, blockSize + Integer.BYTES, (int) suffixSize);
+        blockSegment.asSlice(blockSize + Integer.BYTES * 2, suffixSize).copyFrom(key.asSlice(shared, suffixSize));
+        blockSize += Integer.BYTES * 2 + suffixSize;
+        blockSize += pointer == null ? writeValue(entry.value()) : writePointer(pointer);
+
+        previousKey = key;
+        recordsInBlock++;
+        return newBlock;
+    }
+
+    void finish() throws IOException {
+        if (recordsInBlock > 0) {
+            finishBlock();
+        }
+    }
+
+    // offset of the current block in the output
+    long blockStart() {
+        return offset;
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    private int writeValue(MemorySegment value) {
+        if (value == null) {
+            MemoryAccess.setLongAtOffset(blockSegment, blockSize, -1);
+            return Long.BYTES;
+        }
+        long valueSize = value.byteSize();
+        MemoryAccess.setLongAtOffset(blockSegment, blockSize, valueSize);
+        blockSegment.asSlice(blockSize + Long.BYTES, valueSize).copyFrom(value);
+        return (int) (Long.BYTES + valueSize);
+    }
+
+    private int writePointer(ValueLog.Pointer pointer) {
+        MemoryAccess.setLongAtOffset(blockSegment, blockSize, SSTable.VALUE_IN_LOG);
+        pointer.write(blockSegment, blockSize + Long.BYTES);
+        return Long.BYTES + ValueLog.Pointer.SIZE;
+    }
+
+    private void addRestart(int restartOffset) {
+        if (restartsCount == restarts.length) {
+            restarts = Arrays.copyOf(restarts, restarts.length * 2);
+        }
+        restarts[restartsCount++] = restartOffset;
+    }
+
+    private void ensureCapacity(long size) {
+        if (size > block.length) {
+            block = Arrays.copyOf(block, (int) Math.max(size, block.length * 2L));
+            blockSegment = MemorySegment.ofArray(block);
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        for (int i = 0; i < restartsCount; i++) {
+            MemoryAccess.setIntAtOffset(blockSegment, blockSize + (long) i * Integer.BYTES, restarts[i]);
+        }
+        MemoryAccess.setIntAtOffset(blockSegment, blockSize + (long) restartsCount * Integer.BYTES, restartsCount);
+        blockSize += trailerSize(restartsCount);
+
+        if (codec == null) {
+            write(block, blockSize);
+        } else {
+            writeCompressed();
+        }
+
+        blockSize = 0;
+        recordsInBlock = 0;
+        restartsCount = 0;
+        previousKey = null;
+    }
+
+    // compressed block structure: (uncompressedSize)(compressed or raw bytes), raw bytes are kept as is
+    // when compression doesn't help, which is detected on read by the stored size equal to uncompressedSize
+    private void writeCompressed() throws IOException {
+        if (compressed.length < LzCodec.maxCompressedLength(blockSize)) {
+            compressed = new byte[LzCodec.maxCompressedLength(block.length)];
+        }
+        int compressedSize = codec.compress(block, blockSize, compressed);
+
+        MemoryAccess.setIntAtOffset(MemorySegment.ofArray(blockHeader), 0, blockSize);
+        write(blockHeader, blockHeader.length);
+        if (compressedSize < blockSize) {
+            write(compressed, compressedSize);
+        } else {
+            write(block, blockSize);
+        }
+    }
+
+    private void write(byte[] data, int size) throws IOException {
+        output.write(data, size);
+        offset += size;
+    }
+
+    private static long trailerSize(int restartsCount) {
+        return (long) Integer.BYTES * (restartsCount + 1);
+    }
+
+    private static long maxRecordSize(Entry<MemorySegment> entry, ValueLog.Pointer pointer) {
+        long valueSize;
+        if (pointer != null) {
+            valueSize = ValueLog.Pointer.SIZE;
+        } else {
+            valueSize = entry.value() == null ? 0 : entry.value().byteSize();
+        }
+        return Integer.BYTES * 2 + entry.key().byteSize() + Long.BYTES + valueSize;
+    }
+
+    interface Output {
+        void write(byte[] data, int size) throws IOException;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+// Bloom filter over entry keys, stored as a section of the sstable
+// file structure:
+// (hashCount)(wordCount)((word)...)
+final class BloomFilter {
+
+    private static final int HEADER_SIZE = Long.BYTES * 2;
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+
+    private BloomFilter(long[] words, int hashCount) {
+        this.words = words;
+        this.bitCount = (long) words.length * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    static BloomFilter create(long entriesCount, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate should be in (0;1): " + falsePositiveRate);
+        }
+        long entries = Math.max(entriesCount, 1);
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int wordCount = (int) Math.max(1, (bits + Long.SIZE - 1) / Long.SIZE);
+        int hashCount = (int) Math.max(1, Math.round((double) wordCount * Long.SIZE / entries * ln2));
+        return new BloomFilter(new long[wordCount], hashCount);
+    }
+
+    static BloomFilter read(MemorySegment sstable, long offset) {
+        int hashCount = (int) MemoryAccess.getLongAtOffset(sstable, offset);
+        long wordCount = MemoryAccess.getLongAtOffset(sstable, offset + Long.BYTES);
+        long[] words = sstable.asSlice(offset + HEADER_SIZE, wordCount * Long.BYTES).toLongArray();
+        return new BloomFilter(words, hashCount);
+    }
+
+    long byteSize() {
+        return HEADER_SIZE + (long) words.length * Long.BYTES;
+    }
+
+    long write(MemorySegment sstable, long offset) {
+        MemoryAccess.setLongAtOffset(sstable, offset, hashCount);
+        MemoryAccess.setLongAtOffset(sstable, offset + Long.BYTES, words.length);
+        sstable.asSlice(offset + HEADER_SIZE, (long) words.length * Long.BYTES)
+                .copyFrom(MemorySegment.ofArray(words));
+        return byteSize();
+    }
+
+    void add(MemorySegment key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1, bitCount);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            h1 += h2;
+        }
+    }
+
+    boolean mightContain(MemorySegment key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1, bitCount);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            h1 += h2;
+        }
+        return true;
+    }
+
+    private static long hash(MemorySegment key) {
+        long size = key.byteSize();
+        long hash = SEED ^ (size * MULTIPLIER);
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            hash ^= mix(MemoryAccess.getLongAtOffset(key, offset));
+            hash = Long.rotateLeft(hash, 27) * SEED + MULTIPLIER;
+        }
+        for (; offset < size; offset++) {
+            hash ^= (MemoryAccess.getByteAtOffset(key, offset) & 0xFFL) * SEED;
+            hash = Long.rotateLeft(hash, 11) * MULTIPLIER;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
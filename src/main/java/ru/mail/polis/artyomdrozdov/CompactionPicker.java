@@ -0,0 +1,57 @@
+package ru.mail.polis.artyomdrozdov;
+
+import ru.mail.polis.Config;
+
+import java.util.List;
+
+// Chooses background compaction steps, see Config.CompactionStrategy
+interface CompactionPicker {
+
+    static CompactionPicker create(Config config) {
+        return switch (config.compactionStrategy()) {
+            case LEVELED -> new LeveledCompaction(config);
+            case SIZE_TIERED -> new SizeTieredCompaction(config);
+        };
+    }
+
+    // tables are ordered older first, returns null if there is nothing to compact
+    Task pick(List<SSTable> sstables);
+
+    // level of the full compaction output
+    int fullCompactionLevel(List<SSTable> sstables);
+
+    // compaction outputs are split into tables of about that size
+    long maxTableSize();
+
+    // the table with the largest share of tombstones reaching the threshold, null if there is none
+    static SSTable mostTombstones(List<SSTable> tables, double tombstoneRatio) {
+        SSTable result = null;
+        for (SSTable table : tables) {
+            if (table.tombstoneRatio() >= tombstoneRatio
+                    && (result == null || table.tombstoneRatio() > result.tombstoneRatio())) {
+                result = table;
+            }
+        }
+        return result;
+    }
+
+    // whether key ranges of the tables intersect
+    static boolean overlaps(SSTable a, SSTable b) {
+        return a.minKey() != null && b.minKey() != null
+                && MemorySegmentComparator.INSTANCE.compare(a.minKey(), b.maxKey()) <= 0
+                && MemorySegmentComparator.INSTANCE.compare(b.minKey(), a.maxKey()) <= 0;
+    }
+
+    static boolean overlapsAny(SSTable table, List<SSTable> tables) {
+        for (SSTable other : tables) {
+            if (overlaps(table, other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // inputs are merged into outputLevel
+    record Task(List<SSTable> inputs, int outputLevel) {
+    }
+}
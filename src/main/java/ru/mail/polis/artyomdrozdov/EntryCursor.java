@@ -0,0 +1,27 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+
+// Forward-only scan of sorted entries which creates no objects per entry.
+// The current entry is exposed in place, as offsets into segments owned by the cursor,
+// they are valid only until the next advance(), so a consumer copies what it keeps.
+public interface EntryCursor {
+
+    // moves to the next entry, the first call moves to the very first one, returns false past the last entry
+    boolean advance();
+
+    MemorySegment keyData();
+
+    long keyOffset();
+
+    long keySize();
+
+    boolean isTombstone();
+
+    // the value of a tombstone is undefined
+    MemorySegment valueData();
+
+    long valueOffset();
+
+    long valueSize();
+}
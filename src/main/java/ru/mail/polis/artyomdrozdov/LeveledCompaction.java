@@ -0,0 +1,153 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Picks compaction steps keeping the leveled layout:
+// level 0 holds flushed (overlapping) tables, every next level holds non-overlapping tables
+// and is levelSizeMultiplier times larger than the previous one.
+// A step merges either the whole level 0 or one table of an oversized level
+// with the overlapping tables of the next level, so it touches a bounded amount of data.
+// A table full of tombstones triggers the same steps: it is pushed down until nothing older overlaps it,
+// then it is rewritten in place without the tombstones.
+final class LeveledCompaction implements CompactionPicker {
+
+    private final Config config;
+    // the largest key compacted from each level, the next step for the level starts after it
+    private final Map<Integer, MemorySegment> compactionPointers = new HashMap<>();
+
+    LeveledCompaction(Config config) {
+        this.config = config;
+    }
+
+    // returns null if the layout is within its budgets
+    @Override
+    public Task pick(List<SSTable> sstables) {
+        List<List<SSTable>> levels = levels(sstables);
+
+        List<SSTable> levelZero = levels.get(0);
+        if (levelZero.size() >= config.levelZeroCompactionTrigger()
+                || CompactionPicker.mostTombstones(levelZero, config.tombstoneCompactionRatio()) != null) {
+            return withOverlaps(levelZero, levels, 1);
+        }
+
+        long maxBytes = config.levelOneMaxBytes();
+        for (int level = 1; level < levels.size(); level++) {
+            if (levelBytes(levels.get(level)) > maxBytes) {
+                SSTable table = next(level, levels.get(level));
+                if (table != null) {
+                    compactionPointers.put(level, table.maxKey());
+                    return withOverlaps(List.of(table), levels, level + 1);
+                }
+            }
+            // saturates instead of overflowing into a negative budget
+            maxBytes = maxBytes > Long.MAX_VALUE / config.levelSizeMultiplier()
+                    ? Long.MAX_VALUE
+                    : maxBytes * config.levelSizeMultiplier();
+        }
+
+        // level 0 is compacted as a whole above
+        List<SSTable> leveled = sstables.subList(0, sstables.size() - levelZero.size());
+        SSTable tombstones = CompactionPicker.mostTombstones(leveled, config.tombstoneCompactionRatio());
+        if (tombstones == null) {
+            return null;
+        }
+        // nothing older may hold the deleted keys, rewriting the table drops all of them
+        if (CompactionPicker.overlapsAny(tombstones, sstables.subList(0, sstables.indexOf(tombstones)))) {
+            return withOverlaps(List.of(tombstones), levels, tombstones.level() + 1);
+        }
+        return new Task(List.of(tombstones), tombstones.level());
+    }
+
+    // the deepest level, so nothing older is left below
+    @Override
+    public int fullCompactionLevel(List<SSTable> sstables) {
+        int level = 1;
+        for (SSTable sstable : sstables) {
+            level = Math.max(level, sstable.level());
+        }
+        return level;
+    }
+
+    @Override
+    public long maxTableSize() {
+        return config.flushThresholdBytes();
+    }
+
+    // round robin over the key space of the level
+    private SSTable next(int level, List<SSTable> tables) {
+        MemorySegment pointer = compactionPointers.get(level);
+        SSTable first = null;
+        SSTable next = null;
+        for (SSTable table : tables) {
+            if (table.minKey() == null) {
+                continue;
+            }
+            if (first == null || compare(table.minKey(), first.minKey()) < 0) {
+                first = table;
+            }
+            if (pointer != null && compare(table.minKey(), pointer) > 0
+                    && (next == null || compare(table.minKey(), next.minKey()) < 0)) {
+                next = table;
+            }
+        }
+        return next == null ? first : next;
+    }
+
+    private static Task withOverlaps(List<SSTable> tables, List<List<SSTable>> levels, int outputLevel) {
+        MemorySegment minKey = null;
+        MemorySegment maxKey = null;
+        for (SSTable table : tables) {
+            if (table.minKey() == null) {
+                continue;
+            }
+            if (minKey == null || compare(table.minKey(), minKey) < 0) {
+                minKey = table.minKey();
+            }
+            if (maxKey == null || compare(table.maxKey(), maxKey) > 0) {
+                maxKey = table.maxKey();
+            }
+        }
+
+        List<SSTable> inputs = new ArrayList<>(tables);
+        if (minKey != null && outputLevel < levels.size()) {
+            for (SSTable table : levels.get(outputLevel)) {
+                if (table.minKey() != null
+                        && compare(table.minKey(), maxKey) <= 0
+                        && compare(table.maxKey(), minKey) >= 0) {
+                    inputs.add(table);
+                }
+            }
+        }
+        return new Task(inputs, outputLevel);
+    }
+
+    private static List<List<SSTable>> levels(List<SSTable> sstables) {
+        List<List<SSTable>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>());
+        for (SSTable sstable : sstables) {
+            while (levels.size() <= sstable.level()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(sstable.level()).add(sstable);
+        }
+        return levels;
+    }
+
+    private static long levelBytes(List<SSTable> tables) {
+        long bytes = 0;
+        for (SSTable table : tables) {
+            bytes += table.byteSize();
+        }
+        return bytes;
+    }
+
+    private static int compare(MemorySegment a, MemorySegment b) {
+        return MemorySegmentComparator.INSTANCE.compare(a, b);
+    }
+}
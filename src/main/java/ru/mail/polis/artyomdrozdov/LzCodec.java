@@ -0,0 +1,138 @@
+package ru.mail.polis.artyomdrozdov;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// LZ77 family codec in the spirit of LZ4: greedy matching over a hash of 4-byte sequences.
+// compressed structure:
+// ((token)(literalsLengthExt...)(literals)(matchOffset)(matchLengthExt...))...(token)(literalsLengthExt...)(literals)
+// token keeps literals length in high 4 bits and (match length - MIN_MATCH) in low 4 bits,
+// 15 in a nibble means that the length continues in the following bytes (each 255 adds one more byte).
+// Not thread safe: keeps a reusable hash table.
+final class LzCodec {
+
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    private static final int NIBBLE_MASK = 0xF;
+
+    private final int[] table = new int[1 << HASH_LOG];
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    // returns compressed size, dst should have at least maxCompressedLength(srcLength) bytes
+    int compress(byte[] src, int srcLength, byte[] dst) {
+        Arrays.fill(table, -1);
+
+        int anchor = 0;
+        int pos = 0;
+        int out = 0;
+        while (pos + MIN_MATCH <= srcLength) {
+            int sequence = (int) INT_LE.get(src, pos);
+            int hash = (sequence * 0x9E3779B1) >>> (Integer.SIZE - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = pos;
+            if (ref < 0 || pos - ref > MAX_OFFSET || (int) INT_LE.get(src, ref) != sequence) {
+                pos++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < srcLength && src[ref + matchLength] == src[pos + matchLength]) {
+                matchLength++;
+            }
+
+            out = writeLiterals(src, anchor, pos - anchor, matchLength - MIN_MATCH, dst, out);
+            dst[out++] = (byte) (pos - ref);
+            dst[out++] = (byte) ((pos - ref) >>> 8);
+            out = writeLengthExt(matchLength - MIN_MATCH, dst, out);
+
+            pos += matchLength;
+            anchor = pos;
+        }
+
+        return writeLiterals(src, anchor, srcLength - anchor, 0, dst, out);
+    }
+
+    static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) {
+        int in = 0;
+        int out = 0;
+        while (true) {
+            int token = src[in++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == NIBBLE_MASK) {
+                int next;
+                do {
+                    next = src[in++] & 0xFF;
+                    literals += next;
+                } while (next == 0xFF);
+            }
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+            if (in >= srcLength) {
+                break;
+            }
+
+            int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+            in += 2;
+            int matchLength = token & NIBBLE_MASK;
+            if (matchLength == NIBBLE_MASK) {
+                int next;
+                do {
+                    next = src[in++] & 0xFF;
+                    matchLength += next;
+                } while (next == 0xFF);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = out - offset;
+            if (offset == 0 || ref < 0) {
+                throw new IllegalStateException("Corrupted block: bad match offset " + offset);
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, out, matchLength);
+            } else {
+                // overlapping match repeats the last bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[out + i] = dst[ref + i];
+                }
+            }
+            out += matchLength;
+        }
+
+        if (out != dstLength) {
+            throw new IllegalStateException("Corrupted block: expected " + dstLength + " bytes, got " + out);
+        }
+    }
+
+    private static int writeLiterals(byte[] src, int from, int length, int matchLengthCode, byte[] dst, int out) {
+        int position = out;
+        int literalsCode = Math.min(length, NIBBLE_MASK);
+        dst[position++] = (byte) ((literalsCode << 4) | Math.min(matchLengthCode, NIBBLE_MASK));
+        position = writeLengthExt(length, dst, position);
+        System.arraycopy(src, from, dst, position, length);
+        return position + length;
+    }
+
+    private static int writeLengthExt(int length, byte[] dst, int out) {
+        if (length < NIBBLE_MASK) {
+            return out;
+        }
+        int position = out;
+        int rest = length - NIBBLE_MASK;
+        while (rest >= 0xFF) {
+            dst[position++] = (byte) 0xFF;
+            rest -= 0xFF;
+        }
+        dst[position++] = (byte) rest;
+        return position;
+    }
+}
@@ -0,0 +1,352 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Append-only log of edits to the set of live files, the only source of truth about which files to open.
+// file structure:
+// ((recordsCount/checksum/((op/fileId/argument)...))...)
+// argument is a sequence for ADD_TABLE and a level for SET_LEVEL, a table is at level 0 until a SET_LEVEL record.
+// An edit is applied atomically: a torn or corrupted edit at the end of the log is dropped on open.
+// Tables of deeper levels are older, tables within a level are ordered by sequence (greater is newer).
+// File ids are never reused.
+final class Manifest implements Closeable {
+
+    private static final String FILE_NAME = "MANIFEST";
+    private static final String FILE_EXT_TMP = ".tmp";
+
+    private static final long ADD_TABLE = 1;
+    private static final long REMOVE_TABLE = 2;
+    private static final long ADD_VALUE_LOG = 3;
+    private static final long REMOVE_VALUE_LOG = 4;
+    private static final long SET_LEVEL = 5;
+
+    private static final int EDIT_HEADER_SIZE = Long.BYTES * 2;
+    private static final int RECORD_SIZE = Long.BYTES * 3;
+
+    // the log is rewritten on open when it has that many records more than live files
+    private static final int REWRITE_SLACK = 1024;
+
+    private final Config config;
+    private final Map<Long, Table> tables = new HashMap<>();
+    private final Set<Long> valueLogs = new HashSet<>();
+    private FileChannel channel;
+    private long nextFileId;
+    private long nextSequence;
+
+    private Manifest(Config config) {
+        this.config = config;
+    }
+
+    static Manifest open(Config config) throws IOException {
+        Manifest manifest = new Manifest(config);
+        Path file = config.basePath().resolve(FILE_NAME);
+        boolean existed = Files.exists(file);
+        if (!existed) {
+            checkNoDataFiles(config);
+        }
+        FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        try {
+            long validSize = manifest.replay(channel);
+            channel.truncate(validSize);
+            channel.position(validSize);
+            // a new log has no files of its own, so nothing it does not hold is its garbage
+            if (existed) {
+                manifest.deleteDeadFiles();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        manifest.channel = channel;
+
+        if (channel.size() / RECORD_SIZE > manifest.tables.size() + manifest.valueLogs.size() + REWRITE_SLACK) {
+            manifest.rewrite();
+        }
+        return manifest;
+    }
+
+    // The log is created before the first table or value log file is written.
+    // Data files without it are of the format before the manifest or of something else:
+    // ignoring them would hide their data, and new files could be given the same names.
+    private static void checkNoDataFiles(Config config) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(config.basePath(), "*.dat")) {
+            Iterator<Path> iterator = files.iterator();
+            if (iterator.hasNext()) {
+                throw new IllegalStateException("Data file without a manifest: " + iterator.next());
+            }
+        }
+    }
+
+    // returns size of the valid part of the log
+    private long replay(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        MemorySegment log = MemorySegment.ofArray(buffer.array());
+
+        long offset = 0;
+        while (offset + EDIT_HEADER_SIZE <= size) {
+            long recordsCount = MemoryAccess.getLongAtOffset(log, offset);
+            long checksum = MemoryAccess.getLongAtOffset(log, offset + Long.BYTES);
+            long recordsSize = recordsCount * RECORD_SIZE;
+            if (recordsCount <= 0 || offset + EDIT_HEADER_SIZE + recordsSize > size) {
+                break;
+            }
+            MemorySegment records = log.asSlice(offset + EDIT_HEADER_SIZE, recordsSize);
+            if (checksum(records) != checksum) {
+                break;
+            }
+            for (long position = 0; position < recordsSize; position += RECORD_SIZE) {
+                long op = MemoryAccess.getLongAtOffset(records, position);
+                long fileId = MemoryAccess.getLongAtOffset(records, position + Long.BYTES);
+                long argument = MemoryAccess.getLongAtOffset(records, position + Long.BYTES * 2);
+                apply(op, fileId, argument);
+            }
+            offset += EDIT_HEADER_SIZE + recordsSize;
+        }
+        return offset;
+    }
+
+    // A crash can leave files which are not live: removed ones, if it came right after the edit was committed,
+    // and ones written by a flush or a compaction which never committed. The latter may have any id:
+    // a compaction takes its id first and a flush taking a greater one may commit before it.
+    private void deleteDeadFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(config.basePath(), "*.dat")) {
+            for (Path file : files) {
+                String digits = file.getFileName().toString().replaceAll("\\D", "");
+                if (digits.isEmpty() || digits.length() > 18) {
+                    continue;
+                }
+                long fileId = Long.parseLong(digits);
+                boolean dead = file.equals(Storage.tableFile(config, fileId))
+                        ? !tables.containsKey(fileId)
+                        : file.equals(ValueLog.file(config, fileId)) && !valueLogs.contains(fileId);
+                // a closed dao of the directory may still be deleting the files it released
+                if (dead) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private void apply(long op, long fileId, long argument) {
+        if (op == ADD_TABLE) {
+            tables.put(fileId, new Table(fileId, argument, 0));
+            nextSequence = Math.max(nextSequence, argument + 1);
+        } else if (op == SET_LEVEL) {
+            Table table = tables.get(fileId);
+            if (table == null) {
+                throw new IllegalStateException("Unknown table: " + fileId);
+            }
+            tables.put(fileId, new Table(fileId, table.sequence(), (int) argument));
+        } else if (op == REMOVE_TABLE) {
+            tables.remove(fileId);
+        } else if (op == ADD_VALUE_LOG) {
+            valueLogs.add(fileId);
+        } else if (op == REMOVE_VALUE_LOG) {
+            valueLogs.remove(fileId);
+        } else {
+            throw new IllegalStateException("Unknown manifest record: " + op);
+        }
+        nextFileId = Math.max(nextFileId, fileId + 1);
+    }
+
+    private static long checksum(MemorySegment records) {
+        CRC32 crc = new CRC32();
+        crc.update(records.asByteBuffer());
+        return crc.getValue();
+    }
+
+    synchronized long nextFileId() {
+        return nextFileId++;
+    }
+
+    // live tables, older first
+    synchronized List<Table> tables() {
+        List<Table> result = new ArrayList<>(tables.values());
+        result.sort(Table.OLDER_FIRST);
+        return result;
+    }
+
+    synchronized Set<Long> valueLogs() {
+        return new HashSet<>(valueLogs);
+    }
+
+    // registers a flushed table (newer than any existing one) and a value log file it refers to (if any)
+    synchronized Table addTable(long tableId, long valueLogId) throws IOException {
+        Edit edit = new Edit();
+        long sequence = nextSequence;
+        edit.add(ADD_TABLE, tableId, sequence);
+        if (valueLogId >= 0) {
+            edit.add(ADD_VALUE_LOG, valueLogId, 0);
+        }
+        commit(edit);
+        return new Table(tableId, sequence, 0);
+    }
+
+    // atomically replaces the tables with the compacted ones at the given level,
+    // they take place of the newest replaced table within the level
+    synchronized List<Table> replaceTables(
+            Collection<Long> removedTables,
+            Collection<Long> addedTables,
+            int level,
+            Collection<Long> addedValueLogs,
+            Collection<Long> removedValueLogs) throws IOException {
+        long sequence = removedTables.isEmpty() ? nextSequence : -1;
+        Edit edit = new Edit();
+        for (long removedTable : removedTables) {
+            Table table = tables.get(removedTable);
+            if (table == null) {
+                throw new IllegalStateException("Unknown table: " + removedTable);
+            }
+            sequence = Math.max(sequence, table.sequence());
+            edit.add(REMOVE_TABLE, removedTable, 0);
+        }
+        List<Table> added = new ArrayList<>(addedTables.size());
+        for (long addedTable : addedTables) {
+            edit.add(ADD_TABLE, addedTable, sequence);
+            if (level != 0) {
+                edit.add(SET_LEVEL, addedTable, level);
+            }
+            added.add(new Table(addedTable, sequence, level));
+        }
+        for (long addedValueLog : addedValueLogs) {
+            edit.add(ADD_VALUE_LOG, addedValueLog, 0);
+        }
+        for (long removedValueLog : removedValueLogs) {
+            edit.add(REMOVE_VALUE_LOG, removedValueLog, 0);
+        }
+        commit(edit);
+        return added;
+    }
+
+    private void commit(Edit edit) throws IOException {
+        // an empty edit reads as the end of the log, it would hide all the following ones
+        if (edit.recordsCount == 0) {
+            return;
+        }
+        long position = channel.position();
+        try {
+            edit.writeTo(channel);
+            channel.force(false);
+        } catch (IOException e) {
+            // a torn edit would hide all the following ones
+            channel.truncate(position);
+            throw e;
+        }
+        MemorySegment records = MemorySegment.ofArray(edit.records);
+        for (int i = 0; i < edit.recordsCount; i++) {
+            apply(
+                    MemoryAccess.getLongAtOffset(records, (long) i * RECORD_SIZE),
+                    MemoryAccess.getLongAtOffset(records, (long) i * RECORD_SIZE + Long.BYTES),
+                    MemoryAccess.getLongAtOffset(records, (long) i * RECORD_SIZE + Long.BYTES * 2)
+            );
+        }
+    }
+
+    // replaces the log with a snapshot of live files
+    private void rewrite() throws IOException {
+        Path file = config.basePath().resolve(FILE_NAME);
+        Path tmpFile = config.basePath().resolve(FILE_NAME + FILE_EXT_TMP);
+        Edit snapshot = new Edit();
+        for (Table table : tables.values()) {
+            snapshot.add(ADD_TABLE, table.id(), table.sequence());
+            if (table.level() != 0) {
+                snapshot.add(SET_LEVEL, table.id(), table.level());
+            }
+        }
+        for (long valueLog : valueLogs) {
+            snapshot.add(ADD_VALUE_LOG, valueLog, 0);
+        }
+
+        try (FileChannel tmp = FileChannel.open(
+                tmpFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            if (snapshot.recordsCount > 0) {
+                snapshot.writeTo(tmp);
+            }
+            tmp.force(true);
+        }
+        channel.close();
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    record Table(long id, long sequence, int level) {
+        static final Comparator<Table> OLDER_FIRST = Comparator.comparingInt(Table::level).reversed()
+                .thenComparingLong(Table::sequence);
+    }
+
+    private static final class Edit {
+        private byte[] records = new byte[RECORD_SIZE * 4];
+        private int recordsCount;
+
+        void add(long op, long fileId, long argument) {
+            if ((recordsCount + 1) * RECORD_SIZE > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            MemorySegment segment = MemorySegment.ofArray(records);
+            long offset = (long) recordsCount * RECORD_SIZE;
+            MemoryAccess.setLongAtOffset(segment, offset, op);
+            MemoryAccess.setLongAtOffset(segment, offset + Long.BYTES, fileId);
+            MemoryAccess.setLongAtOffset(segment, offset + Long.BYTES * 2, argument);
+            recordsCount++;
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            int recordsSize = recordsCount * RECORD_SIZE;
+            byte[] header = new byte[EDIT_HEADER_SIZE];
+            MemoryAccess.setLongAtOffset(MemorySegment.ofArray(header), 0, recordsCount);
+            MemoryAccess.setLongAtOffset(
+                    MemorySegment.ofArray(header),
+                    Long.BYTES,
+                    checksum(MemorySegment.ofArray(records).asSlice(0, recordsSize))
+            );
+            ByteBuffer[] buffers = {ByteBuffer.wrap(header), ByteBuffer.wrap(records, 0, recordsSize)};
+            long written = 0;
+            while (written < EDIT_HEADER_SIZE + recordsSize) {
+                written += channel.write(buffers);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Read-only mapping shared by storage versions.
+// Every version holding the file owns a reference, the file is unmapped when the last one is released
+// and deleted as well if it was removed from the manifest meanwhile.
+final class MappedFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFile.class);
+
+    private final Path path;
+    private final MemorySegment segment;
+    // the creator owns the first reference
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    private MappedFile(Path path, MemorySegment segment) {
+        this.path = path;
+        this.segment = segment;
+    }
+
+    static MappedFile map(Path path) throws IOException {
+        return new MappedFile(path, Storage.mapForRead(path));
+    }
+
+    MemorySegment segment() {
+        return segment;
+    }
+
+    // supposed to be called by an owner of another reference only, so the file can't be released meanwhile
+    void acquire() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("File is already released: " + path);
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        Storage.unmap(segment);
+        if (obsolete) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.warn("Can't delete {}", path, e);
+            }
+        }
+    }
+
+    // the file is deleted on the last release
+    void markObsolete() {
+        obsolete = true;
+    }
+}
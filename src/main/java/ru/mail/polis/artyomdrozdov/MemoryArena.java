@@ -0,0 +1,114 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bump allocator over native slabs of a single scope: allocations are never freed one by one,
+// all the slabs go away at once when the arena is closed.
+// Allocation is lock-free unless the current slab is exhausted, and it updates no shared counter but the offset
+// in the current slab: the size is derived from the slabs when asked for.
+// An address is the slab index in the upper half and the offset within the slab in the lower one,
+// so it fits a long and can be stored in the arena itself.
+final class MemoryArena {
+
+    private static final int OFFSET_BITS = 32;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long ALIGNMENT = Long.BYTES;
+    private static final long MIN_SLAB_SIZE = 64 * 1024;
+    private static final long MAX_SLAB_SIZE = 4 * 1024 * 1024;
+    // smaller slabs would waste the memory of small memtables
+    private static final int SLABS_PER_THRESHOLD = 8;
+
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final long slabSize;
+    // sizes of the slabs which are not current, written under the lock of the arena
+    private volatile long retiredBytes;
+
+    // copy on write, an address is published only after its slab is
+    private volatile MemorySegment[] slabs = new MemorySegment[0];
+    private volatile Slab slab;
+
+    // the slab size is derived from the amount of memory the arena is expected to hold
+    MemoryArena(long expectedBytes) {
+        this.slabSize = Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, expectedBytes / SLABS_PER_THRESHOLD));
+    }
+
+    // returns the address of zeroed memory aligned to 8 bytes, it stays valid until the arena is closed
+    long allocate(long size) {
+        long alignedSize = (size + ALIGNMENT - 1) & -ALIGNMENT;
+        if (alignedSize > slabSize / 4) {
+            // a large allocation would waste the rest of the slab
+            return address(addLargeSlab(alignedSize), 0);
+        }
+        while (true) {
+            Slab current = slab;
+            if (current != null) {
+                long offset = current.next.getAndAdd(alignedSize);
+                if (offset + alignedSize <= slabSize) {
+                    return address(current.index, offset);
+                }
+            }
+            nextSlab(current);
+        }
+    }
+
+    private synchronized void nextSlab(Slab exhausted) {
+        if (slab == exhausted) {
+            if (exhausted != null) {
+                retiredBytes += slabSize;
+            }
+            slab = new Slab(addSlab(slabSize));
+        }
+    }
+
+    private synchronized int addLargeSlab(long size) {
+        int index = addSlab(size);
+        retiredBytes += size;
+        return index;
+    }
+
+    private synchronized int addSlab(long size) {
+        MemorySegment[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+        newSlabs[slabs.length] = MemorySegment.allocateNative(size, ALIGNMENT, scope);
+        slabs = newSlabs;
+        return slabs.length - 1;
+    }
+
+    private static long address(int slabIndex, long offset) {
+        return ((long) slabIndex << OFFSET_BITS) | offset;
+    }
+
+    // the slab holding the address
+    MemorySegment slab(long address) {
+        return slabs[(int) (address >>> OFFSET_BITS)];
+    }
+
+    // offset of the address within its slab
+    static long offset(long address) {
+        return address & OFFSET_MASK;
+    }
+
+    // bytes handed out, alignment and the unused tails of exhausted slabs included;
+    // it may lag behind allocations which are in progress
+    long allocatedBytes() {
+        Slab current = slab;
+        return retiredBytes + (current == null ? 0 : Math.min(current.next.get(), slabSize));
+    }
+
+    // frees all the slabs, the allocated memory is not accessible after
+    void close() {
+        scope.close();
+    }
+
+    private static final class Slab {
+        final int index;
+        final AtomicLong next = new AtomicLong();
+
+        Slab(int index) {
+            this.index = index;
+        }
+    }
+}
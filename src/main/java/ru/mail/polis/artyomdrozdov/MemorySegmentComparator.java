@@ -3,6 +3,7 @@ package ru.mail.polis.artyomdrozdov;
 import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 
+import java.nio.ByteOrder;
 import java.util.Comparator;
 
 public class MemorySegmentComparator implements Comparator<MemorySegment> {
@@ -29,4 +30,28 @@ public class MemorySegmentComparator implements Comparator<MemorySegment> {
                 MemoryAccess.getByteAtOffset(m2, firstMismatch)
         );
     }
+
+    // compares keys in place, without slicing the segments
+    public static int compare(MemorySegment m1, long offset1, long size1, MemorySegment m2, long offset2, long size2) {
+        long size = Math.min(size1, size2);
+        long i = 0;
+        // big-endian words compare as the bytes they consist of
+        for (; i + Long.BYTES <= size; i += Long.BYTES) {
+            long word1 = MemoryAccess.getLongAtOffset(m1, offset1 + i, ByteOrder.BIG_ENDIAN);
+            long word2 = MemoryAccess.getLongAtOffset(m2, offset2 + i, ByteOrder.BIG_ENDIAN);
+            if (word1 != word2) {
+                return Long.compareUnsigned(word1, word2);
+            }
+        }
+        for (; i < size; i++) {
+            int result = Byte.compareUnsigned(
+                    MemoryAccess.getByteAtOffset(m1, offset1 + i),
+                    MemoryAccess.getByteAtOffset(m2, offset2 + i)
+            );
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Long.compare(size1, size2);
+    }
 }
@@ -1,5 +1,6 @@
 package ru.mail.polis.artyomdrozdov;
 
+import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,22 +9,32 @@ import ru.mail.polis.Dao;
 import ru.mail.polis.Entry;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>> {
 
@@ -31,18 +42,208 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[]{});
 
-    private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
+    private static final int REPLAY_THREADS = Runtime.getRuntime().availableProcessors();
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(
-            r -> new Thread(r, "MemorySegmentDaoBG"));
+    // guards state switches, writers don't take it, see upsert()
+    private final Lock stateLock = new ReentrantLock();
+
+    // writers blocked by the full flush queue wait for a flush to complete
+    private final Condition flushCompleted = stateLock.newCondition();
+
+    // flushes complete in the queue order, so awaiting the last one awaits all of them, guarded by stateLock
+    private Future<?> lastFlush = CompletableFuture.completedFuture(null);
+
+    // flushes queued memtables in order, on a thread of their own so a long compaction never holds them in memory
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MemorySegmentDaoFlush");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        return thread;
+    });
+
+    // compactions run aside, so a merge of the levels doesn't hold the flushes
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "MemorySegmentDaoCompaction"));
+
+    // flushes and compactions complete in any order, each one switches the storage version current at that moment
+    private final Lock storageSwitchLock = new ReentrantLock();
+
+    // at most one compaction step is queued, it sees all the tables flushed before it starts
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // the first failure of a background compaction: compactions stop and the following writes, flushes
+    // and close() fail with it, rather than let level 0 grow without bound
+    private volatile Exception compactionFailure;
 
     private volatile State state;
 
+    // batches are applied one at a time, see upsertBatch()
+    private final Lock batchLock = new ReentrantLock();
+
+    // number of the last applied batch, written under batchLock
+    private volatile long publishedBatch;
+
+    // number of the last batch taken, guarded by batchLock; numbers of failed batches are never published
+    private long lastBatch;
+
     private final Config config;
 
+    private final Manifest manifest;
+
+    private final CompactionPicker compactionPicker;
+
+    // paces background writes, learns from foreground read latency
+    private final RateLimiter rateLimiter;
+
+    private final WriteAheadLog wal;
+
+    // forces the log of ASYNC durability, null otherwise
+    private final ScheduledExecutorService walSyncExecutor;
+
     public MemorySegmentDao(Config config) throws IOException {
         this.config = config;
-        this.state = State.newState(config, Storage.load(config));
+        this.manifest = Manifest.open(config);
+        this.compactionPicker = CompactionPicker.create(config);
+        this.rateLimiter = new RateLimiter(config.backgroundWriteBytesPerSecond());
+        List<Memory> replayed = List.of();
+        try {
+            this.wal = WriteAheadLog.open(config);
+            Storage storage = Storage.load(config, manifest);
+            try {
+                // segments are replayed even if the log is off now, they may hold writes of the previous run
+                replayed = replay();
+                this.state = State.newState(config, storage, newMemory(), replayed);
+            } catch (IOException | RuntimeException e) {
+                discard(replayed);
+                storage.release();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            manifest.close();
+            throw e;
+        }
+        stateLock.lock();
+        try {
+            for (Memory memory : replayed) {
+                lastFlush = flushExecutor.submit(() -> flush(memory));
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (config.walDurability() == Config.WalDurability.ASYNC) {
+            walSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "MemorySegmentDaoWal"));
+            walSyncExecutor.scheduleWithFixedDelay(
+                    this::syncLog,
+                    config.walSyncIntervalMillis(),
+                    config.walSyncIntervalMillis(),
+                    TimeUnit.MILLISECONDS
+            );
+        } else {
+            walSyncExecutor = null;
+        }
+    }
+
+    // Segments left by the previous run are read back into memtables queued for flush, older first,
+    // so the constructor returns as soon as reads can see the writes and the tables are written in the background.
+    // Segments are read concurrently, and every segment by several threads parsing ranges of its records.
+    // Every record is parsed once, and the writes of a key come out in the log order whatever thread applies them,
+    // as the memtable orders them by their log positions.
+    private List<Memory> replay() throws IOException {
+        List<Long> segmentIds = wal.existingSegments();
+        if (segmentIds.isEmpty()) {
+            return List.of();
+        }
+        long start = System.nanoTime();
+        WriteAheadLog.Replay[] replays = new WriteAheadLog.Replay[segmentIds.size()];
+        List<Memory> memories = new ArrayList<>(segmentIds.size());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                REPLAY_THREADS,
+                r -> new Thread(r, "MemorySegmentDaoReplay")
+        );
+        try {
+            List<Callable<WriteAheadLog.Replay>> opens = new ArrayList<>(segmentIds.size());
+            for (int i = 0; i < replays.length; i++) {
+                int index = i;
+                opens.add(() -> replays[index] = wal.openReplay(segmentIds.get(index)));
+            }
+            for (Future<WriteAheadLog.Replay> open : executor.invokeAll(opens)) {
+                await(open);
+            }
+
+            List<Callable<Void>> applies = new ArrayList<>(replays.length * REPLAY_THREADS);
+            for (WriteAheadLog.Replay replay : replays) {
+                Memory memory = new Memory(config.flushThresholdBytes(), wal.reopen(replay.id));
+                memories.add(memory);
+                long[] bounds = replay.split(REPLAY_THREADS);
+                for (int range = 0; range + 1 < bounds.length; range++) {
+                    long from = bounds[range];
+                    long to = bounds[range + 1];
+                    applies.add(() -> {
+                        replay.forEach(from, to, (entry, logPosition) -> memory.put(entry.key(), entry, logPosition));
+                        return null;
+                    });
+                }
+            }
+            for (Future<Void> apply : executor.invokeAll(applies)) {
+                await(apply);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(memories);
+            throw new InterruptedIOException("Interrupted while replaying write-ahead log");
+        } catch (IOException | RuntimeException e) {
+            discard(memories);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            for (WriteAheadLog.Replay replay : replays) {
+                if (replay != null) {
+                    replay.close();
+                }
+            }
+        }
+
+        long bytes = 0;
+        for (WriteAheadLog.Replay replay : replays) {
+            bytes += replay.validSize();
+        }
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        LOG.info("Replayed {} bytes of {} log segments in {} ms: {} MB/s",
+                bytes, replays.length, millis, bytes * 1000 / millis / (1024 * 1024));
+
+        for (Memory memory : memories) {
+            // nothing is written to a replayed memtable
+            memory.writers.close();
+        }
+        return memories;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // the segments are kept for the next run
+    private static void discard(List<Memory> memories) throws IOException {
+        for (Memory memory : memories) {
+            memory.log.close();
+            memory.release();
+        }
+    }
+
+    private Memory newMemory() throws IOException {
+        return new Memory(
+                config.flushThresholdBytes(),
+                config.walDurability() == Config.WalDurability.NONE ? null : wal.newSegment()
+        );
     }
 
     @Override
@@ -51,156 +252,410 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             from = VERY_FIRST_KEY;
         }
 
-        return getTombstoneFilteringIterator(from, to);
+        long start = System.nanoTime();
+        TombstoneFilteringIterator iterator = getTombstoneFilteringIterator(from, to);
+        // a scan waits for the disk while every table seeks to the first live entry, later ones are mostly sequential
+        iterator.hasNext();
+        rateLimiter.recordLatency(System.nanoTime() - start);
+        return iterator;
     }
 
     private TombstoneFilteringIterator getTombstoneFilteringIterator(MemorySegment from, MemorySegment to) {
-        State state = accessState();
+        // a batch lives in a single memtable, so the iterator sees it as a whole whatever state it takes
+        long snapshot = publishedBatch;
+        State state = acquireState();
+        try {
+            ArrayList<Iterator<Entry<MemorySegment>>> iterators = state.storage.iterate(from, to);
 
-        ArrayList<Iterator<Entry<MemorySegment>>> iterators = state.storage.iterate(from, to);
+            for (Memory flushing : state.flushing) {
+                iterators.add(flushing.get(from, to, snapshot));
+            }
+            iterators.add(state.memory.get(from, to, snapshot));
 
-        iterators.add(state.flushing.get(from, to));
-        iterators.add(state.memory.get(from, to));
+            Iterator<Entry<MemorySegment>> mergeIterator = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
 
-        Iterator<Entry<MemorySegment>> mergeIterator = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
+            return new TombstoneFilteringIterator(mergeIterator, state);
+        } catch (RuntimeException e) {
+            state.release();
+            throw e;
+        }
+    }
 
-        return new TombstoneFilteringIterator(mergeIterator);
+    // Scans the range like get(from, to), but creates no objects per entry, tombstones are skipped.
+    // The entry is exposed in place and is valid only until the next advance(), see EntryCursor.
+    // Like an iterator, the cursor pins the state until it is exhausted or unreachable.
+    public EntryCursor cursor(MemorySegment from, MemorySegment to) {
+        if (from == null) {
+            from = VERY_FIRST_KEY;
+        }
+        long snapshot = publishedBatch;
+        State state = acquireState();
+        try {
+            List<EntryCursor> cursors = new ArrayList<>(state.flushing.size() + 2);
+            // tables are older than memtables, so they are merged first
+            cursors.add(state.storage.cursor(from, to));
+            for (Memory flushing : state.flushing) {
+                cursors.add(flushing.cursor(from, to, snapshot));
+            }
+            cursors.add(state.memory.cursor(from, to, snapshot));
+            return new TombstoneSkippingCursor(MergeCursor.of(cursors), state);
+        } catch (RuntimeException e) {
+            state.release();
+            throw e;
+        }
     }
 
     @Override
     public Entry<MemorySegment> get(MemorySegment key) {
-        State state = accessState();
+        long start = System.nanoTime();
+        long snapshot = publishedBatch;
+        State state = acquireState();
 
-        Entry<MemorySegment> result = state.memory.get(key);
-        if (result == null) {
-            result = state.storage.get(key);
+        Entry<MemorySegment> result;
+        try {
+            result = state.memory.get(key, snapshot);
+            for (int i = state.flushing.size() - 1; result == null && i >= 0; i--) {
+                result = state.flushing.get(i).get(key, snapshot);
+            }
+            if (result == null) {
+                result = state.storage.get(key);
+            } else if (!result.isTombstone()) {
+                // memtable entries point to its arena
+                result = Storage.detach(result);
+            }
+        } finally {
+            state.release();
         }
+        rateLimiter.recordLatency(System.nanoTime() - start);
 
         return (result == null || result.isTombstone()) ? null : result;
     }
 
     @Override
     public void upsert(Entry<MemorySegment> entry) {
-        State state = accessState();
+        checkCompactionFailure();
+        State state;
+        int ticket;
+        do {
+            // a memtable moved to the flush queue is closed for writes, the new state is already published then
+            state = accessState();
+            ticket = state.memory.writers.enter();
+        } while (ticket < 0);
+        Memory memory = state.memory;
+        boolean oversized;
+        long logPosition;
+        try {
+            // the flush waits for the writers in the memtable, so the record never misses the segment of it;
+            // a concurrent write of the key may be put first, the log position keeps the memtable in the log order
+            logPosition = memory.log == null ? 0 : memory.log.append(entry);
+            oversized = memory.put(entry.key(), entry, logPosition);
+        } finally {
+            memory.writers.exit(ticket);
+        }
+        afterWrite(state, memory, logPosition, oversized);
+    }
 
-        boolean runFlush;
-        // it is intentionally the read lock!!!
-        upsertLock.readLock().lock();
+    // Batches are applied one at a time and numbered in that order, the number is published once the batch is applied.
+    // A reader takes the last published number as a snapshot and skips the writes of greater ones,
+    // so it sees a batch either as a whole or not at all.
+    // Applying batches in turn keeps concurrent batches with common keys from winning a part of the keys each.
+    // A batch failing to apply is aborted: its number is skipped and the writes it made are hidden for good.
+    // Its log record stays, so a batch failing after it is logged may come back after a restart.
+    // Writes of single upserts are not numbered and are seen at once, as before.
+    @Override
+    public void upsertBatch(Collection<Entry<MemorySegment>> entries) {
+        checkCompactionFailure();
+        if (entries.isEmpty()) {
+            return;
+        }
+        State state;
+        int ticket;
+        do {
+            state = accessState();
+            ticket = state.memory.writers.enter();
+        } while (ticket < 0);
+        Memory memory = state.memory;
+        boolean oversized;
+        long logPosition;
+        batchLock.lock();
         try {
-            runFlush = state.memory.put(entry.key(), entry);
+            // a single record, so a crash never leaves a part of the batch
+            logPosition = memory.log == null ? 0 : memory.log.append(entries);
+            long sequence = ++lastBatch;
+            long[] records = new long[entries.size()];
+            int applied = 0;
+            try {
+                for (Entry<MemorySegment> entry : entries) {
+                    records[applied] = memory.put(entry.key(), entry, sequence, logPosition);
+                    applied++;
+                }
+            } catch (RuntimeException | Error e) {
+                abort(memory, entries, records, applied);
+                throw e;
+            }
+            publishedBatch = sequence;
+            oversized = memory.isOversized();
         } finally {
-            upsertLock.readLock().unlock();
+            batchLock.unlock();
+            memory.writers.exit(ticket);
         }
+        afterWrite(state, memory, logPosition, oversized);
+    }
 
-        if (runFlush) {
-            flushInBg(false);
+    private static void abort(Memory memory, Collection<Entry<MemorySegment>> entries, long[] records, int applied) {
+        Iterator<Entry<MemorySegment>> iterator = entries.iterator();
+        for (int i = 0; i < applied; i++) {
+            memory.abort(iterator.next().key(), records[i]);
         }
     }
 
-    private Future<?> flushInBg(boolean tolerateFlushInProgress) {
-        upsertLock.writeLock().lock();
+    private void afterWrite(State state, Memory memory, long logPosition, boolean oversized) {
+        if (memory.log != null && config.walDurability() == Config.WalDurability.SYNC) {
+            try {
+                memory.log.sync(logPosition);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        int queued = state.flushing.size();
+
+        if (oversized) {
+            scheduleFlush(memory);
+        } else if (config.writeSlowdownMicros() > 0 && queued >= Math.max(1, (config.maxFlushQueueSize() + 1) / 2)) {
+            // flushes fall behind: writes are spread out before the queue is full and writers get blocked
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(config.writeSlowdownMicros()));
+        }
+    }
+
+    // moves the memtable to the flush queue unless it is already there,
+    // blocks while the queue is full so the memory taken by memtables stays bounded
+    private Future<?> scheduleFlush(Memory memory) {
+        stateLock.lock();
         try {
             State state = accessState();
-            if (state.isFlushing()) {
-                if (tolerateFlushInProgress) {
-                    // or any other completed future
-                    return CompletableFuture.completedFuture(null);
+            while (state.memory == memory && state.flushing.size() >= config.maxFlushQueueSize()) {
+                if (state.storage.isClosed()) {
+                    throw new StorageClosedException(new IllegalStateException("Flushes failed"));
+                }
+                try {
+                    flushCompleted.await();
+                } catch (InterruptedException e) {
+                    // the entry is already written, the next writer retries the flush
+                    Thread.currentThread().interrupt();
+                    return lastFlush;
                 }
-                throw new TooManyFlushesInBgException();
+                state = accessState();
+            }
+            if (state.memory != memory || memory.isEmpty()) {
+                return lastFlush;
             }
 
-            state = state.prepareForFlush();
-            this.state = state;
+            Memory newMemory;
+            try {
+                newMemory = newMemory();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lastFlush = flushExecutor.submit(() -> flush(memory));
+            this.state = state.prepareForFlush(newMemory);
+            // writers go to the new memtable from now on, the flush waits for the ones already in
+            memory.writers.close();
+            state.release();
+            return lastFlush;
         } finally {
-            upsertLock.writeLock().unlock();
+            stateLock.unlock();
         }
+    }
 
-        return executor.submit(() -> {
+    private Void flush(Memory memory) throws IOException {
+        try {
+            memory.writers.awaitClosed();
+            long start = System.nanoTime();
+            Storage.Change change = Storage.save(config, manifest, memory.values(), rateLimiter);
+            logThroughput("Flush", change.size(), start);
+            switchStorage(change, (state, storage) -> state.afterFlush(memory, storage));
+            dropLog(memory);
+            scheduleCompaction();
+            return null;
+        } catch (Exception e) {
+            LOG.error("Can't flush", e);
             try {
-                State state = accessState();
-
-                Storage storage = state.storage;
-                Storage.save(config, storage, state.flushing.values());
-                Storage load = Storage.load(config);
-
-                upsertLock.writeLock().lock();
+                this.state.storage.close();
+            } catch (IOException ex) {
+                LOG.error("Can't stop storage", ex);
+                ex.addSuppressed(e);
+                throw ex;
+            } finally {
+                // blocked writers fail instead of waiting forever
+                stateLock.lock();
                 try {
-                    this.state = state.afterFlush(load);
+                    flushCompleted.signalAll();
                 } finally {
-                    upsertLock.writeLock().unlock();
+                    stateLock.unlock();
                 }
-                storage.maybeClose();
-                return null;
-            } catch (Exception e) {
-                LOG.error("Can't flush", e);
-                try {
-                    this.state.storage.close();
-                } catch (IOException ex) {
-                    LOG.error("Can't stop storage", ex);
-                    ex.addSuppressed(e);
-                    throw ex;
-                }
-                throw e;
             }
-        });
+            throw e;
+        }
     }
 
+    // waits for the current memtable and the ones queued before it
     @Override
     public void flush() throws IOException {
-        boolean runFlush;
-        // it is intentionally the read lock!!!
-        upsertLock.writeLock().lock();
-        try {
-            runFlush = state.memory.overflow();
-        } finally {
-            upsertLock.writeLock().unlock();
-        }
-
-        if (runFlush) {
-            Future<?> future = flushInBg(true);
-            awaitAndUnwrap(future);
-        }
+        awaitAndUnwrap(scheduleFlush(accessState().memory));
+        checkCompactionFailure();
     }
 
     @Override
     public void compact() throws IOException {
+        checkCompactionFailure();
         State preCompactState = accessState();
 
         if (preCompactState.memory.isEmpty() && preCompactState.storage.isCompacted()) {
             return;
         }
 
-        Future<Object> future = executor.submit(() -> {
-            State state = accessState();
+        Future<Object> future = compactionExecutor.submit(() -> {
+            State state = acquireState();
+            try {
+                if (state.memory.isEmpty() && state.storage.isCompacted()) {
+                    return null;
+                }
 
-            if (state.memory.isEmpty() && state.storage.isCompacted()) {
+                long start = System.nanoTime();
+                List<SSTable> sstables = state.storage.sstables();
+                Storage.Change change = Storage.compact(
+                        config,
+                        manifest,
+                        state.storage,
+                        sstables,
+                        compactionPicker.fullCompactionLevel(sstables),
+                        compactionPicker.maxTableSize(),
+                        rateLimiter
+                );
+                logThroughput("Compaction", change.size(), start);
+                switchStorage(change, State::afterCompact);
                 return null;
+            } finally {
+                state.release();
             }
+        });
 
-            Storage.compact(
-                    config,
-                    () -> MergeIterator.of(
-                            state.storage.iterate(VERY_FIRST_KEY,
-                                    null
-                            ),
-                            EntryKeyComparator.INSTANCE
-                    )
-            );
+        awaitAndUnwrap(future);
+    }
 
-            Storage storage = Storage.load(config);
+    private void scheduleCompaction() {
+        if (compactionFailure != null || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(this::compactInBg);
+        } catch (RejectedExecutionException e) {
+            // dao is closing, tables are compacted after the next flush
+            compactionScheduled.set(false);
+        }
+    }
 
-            upsertLock.writeLock().lock();
+    // runs a single step picked by the compaction strategy and schedules the next one if there is more to do,
+    // so dao.compact() waits for one step at most
+    private void compactInBg() {
+        compactionScheduled.set(false);
+        try {
+            // the tables stay mapped even if flushes switch the version meanwhile
+            State state = acquireState();
             try {
-                this.state = state.afterCompact(storage);
+                CompactionPicker.Task task = compactionPicker.pick(state.storage.sstables());
+                if (task == null) {
+                    return;
+                }
+                long start = System.nanoTime();
+                Storage.Change change = Storage.compact(
+                        config,
+                        manifest,
+                        state.storage,
+                        task.inputs(),
+                        task.outputLevel(),
+                        compactionPicker.maxTableSize(),
+                        rateLimiter
+                );
+                logThroughput("Level " + task.outputLevel() + " compaction", change.size(), start);
+                switchStorage(change, State::afterCompact);
             } finally {
-                upsertLock.writeLock().unlock();
+                state.release();
             }
+            scheduleCompaction();
+        } catch (Exception e) {
+            LOG.error("Can't compact in background", e);
+            compactionFailure = e;
+        }
+    }
 
-            state.storage.maybeClose();
-            return null;
-        });
+    private void checkCompactionFailure() {
+        Exception failure = compactionFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Background compaction failed", failure);
+        }
+    }
 
-        awaitAndUnwrap(future);
+    // the change is applied to the current version rather than to the one it was made from:
+    // a compaction keeps the tables flushed while it was running and a flush keeps the compaction outputs
+    private void switchStorage(Storage.Change change, BiFunction<State, Storage, State> transition)
+            throws IOException {
+        storageSwitchLock.lock();
+        try {
+            Storage storage = this.state.storage.apply(config, change);
+
+            State previous;
+            stateLock.lock();
+            try {
+                previous = this.state;
+                this.state = transition.apply(previous, storage);
+                flushCompleted.signalAll();
+            } finally {
+                stateLock.unlock();
+            }
+
+            // memtables left the state are freed once in-flight readers release the previous one
+            previous.release();
+        } finally {
+            storageSwitchLock.unlock();
+        }
+    }
+
+    // the table of the memtable is committed, its writes are durable without the log
+    private void dropLog(Memory memory) throws IOException {
+        if (memory.log != null) {
+            memory.log.close();
+            wal.delete(memory.log.id);
+        }
+    }
+
+    // forces the logs of the memtables, including the queued ones, as they may wait for the flush long
+    private void syncLog() {
+        State state = this.state;
+        try {
+            for (Memory memory : state.flushing) {
+                if (memory.log != null) {
+                    memory.log.sync(memory.log.appended());
+                }
+            }
+            if (state.memory.log != null) {
+                state.memory.log.sync(state.memory.log.appended());
+            }
+        } catch (IOException e) {
+            LOG.error("Can't sync write-ahead log", e);
+        }
+    }
+
+    private void logThroughput(String operation, long bytes, long startNanos) {
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), 1);
+        LOG.info("{} wrote {} bytes in {} ms: {} KB/s (block compression: {})",
+                operation, bytes, millis, bytes * 1000 / 1024 / millis, config.blockCompression());
+        if (!rateLimiter.isUnlimited()) {
+            RateLimiter.Metrics metrics = rateLimiter.metrics();
+            LOG.info("Background writes: {} bytes, {} bytes throttled for {} ms, {} slowdowns, now {} KB/s",
+                    metrics.writtenBytes(), metrics.throttledBytes(), metrics.throttledMillis(),
+                    metrics.slowdowns(), metrics.bytesPerSecond() / 1024);
+        }
     }
 
     private void awaitAndUnwrap(Future<?> future) throws IOException {
@@ -219,6 +674,21 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
     }
 
+    // pins the current state, it is released by the caller
+    private State acquireState() {
+        while (true) {
+            State state = accessState();
+            if (state.acquire()) {
+                if (state.storage.isClosed()) {
+                    state.release();
+                    throw new StorageClosedException(new IllegalStateException("Storage is closed"));
+                }
+                return state;
+            }
+            // the state was superseded meanwhile, the new one is already published
+        }
+    }
+
     private State accessState() {
         State state = this.state;
         if (state.closed) {
@@ -233,28 +703,52 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         if (state.closed) {
             return;
         }
-        executor.shutdown();
+        flushExecutor.shutdown();
+        compactionExecutor.shutdown();
+        if (walSyncExecutor != null) {
+            walSyncExecutor.shutdown();
+        }
         try {
             //noinspection StatementWithEmptyBody
-            while (!executor.awaitTermination(10, TimeUnit.DAYS)) ;
+            while (!flushExecutor.awaitTermination(10, TimeUnit.DAYS)) ;
+            //noinspection StatementWithEmptyBody
+            while (!compactionExecutor.awaitTermination(10, TimeUnit.DAYS)) ;
+            //noinspection StatementWithEmptyBody
+            while (walSyncExecutor != null && !walSyncExecutor.awaitTermination(10, TimeUnit.DAYS)) ;
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
         state = this.state;
         state.storage.close();
         this.state = state.afterClosed();
-        if (state.memory.isEmpty()) {
-            return;
+        state.memory.writers.close();
+        state.memory.writers.awaitClosed();
+        try (manifest) {
+            if (!state.memory.isEmpty()) {
+                // the caller waits for the final flush, so it is not throttled
+                Storage.save(config, manifest, state.memory.values(), RateLimiter.UNLIMITED);
+            }
+            dropLog(state.memory);
+        } finally {
+            state.release();
+        }
+        // the memtable is saved anyway, the tables written so far are consistent
+        if (compactionFailure != null) {
+            throw new IOException("Background compaction failed", compactionFailure);
         }
-        Storage.save(config, state.storage, state.memory.values());
     }
 
+    // Pins the state while the iterator or any entry it returned is reachable.
+    // Entries are slices of the memtable arenas and of the mapped files, they are not copied.
     private static class TombstoneFilteringIterator implements Iterator<Entry<MemorySegment>> {
         private final Iterator<Entry<MemorySegment>> iterator;
+        // owns the acquired state reference, dropped by the exhausted iterator
+        private Object pin = new Object();
         private Entry<MemorySegment> current;
 
-        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator) {
+        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator, State state) {
             this.iterator = iterator;
+            Storage.releaseWhenUnreachable(pin, state::release);
         }
 
         public Entry<MemorySegment> peek() {
@@ -267,14 +761,25 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 return true;
             }
 
-            while (iterator.hasNext()) {
-                Entry<MemorySegment> entry = iterator.next();
-                if (!entry.isTombstone()) {
-                    this.current = entry;
-                    return true;
+            if (pin == null) {
+                return false;
+            }
+
+            try {
+                while (iterator.hasNext()) {
+                    Entry<MemorySegment> entry = iterator.next();
+                    if (!entry.isTombstone()) {
+                        this.current = Storage.pin(entry, pin);
+                        return true;
+                    }
                 }
+            } catch (RuntimeException e) {
+                pin = null;
+                throw e;
             }
 
+            // the returned entries keep the storage
+            pin = null;
             return false;
         }
 
@@ -289,14 +794,87 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
     }
 
+    private static class TombstoneSkippingCursor implements EntryCursor {
+        private final EntryCursor cursor;
+        private final Cleaner.Cleanable stateReference;
+        private boolean exhausted;
+
+        TombstoneSkippingCursor(EntryCursor cursor, State state) {
+            this.cursor = cursor;
+            this.stateReference = Storage.releaseWhenUnreachable(this, state::release);
+        }
+
+        @Override
+        public boolean advance() {
+            if (exhausted) {
+                return false;
+            }
+            try {
+                while (cursor.advance()) {
+                    if (!cursor.isTombstone()) {
+                        return true;
+                    }
+                }
+            } catch (RuntimeException e) {
+                exhausted = true;
+                stateReference.clean();
+                throw e;
+            }
+            exhausted = true;
+            stateReference.clean();
+            return false;
+        }
+
+        @Override
+        public MemorySegment keyData() {
+            return cursor.keyData();
+        }
+
+        @Override
+        public long keyOffset() {
+            return cursor.keyOffset();
+        }
+
+        @Override
+        public long keySize() {
+            return cursor.keySize();
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return false;
+        }
+
+        @Override
+        public MemorySegment valueData() {
+            return cursor.valueData();
+        }
+
+        @Override
+        public long valueOffset() {
+            return cursor.valueOffset();
+        }
+
+        @Override
+        public long valueSize() {
+            return cursor.valueSize();
+        }
+    }
+
+    // The current state is owned by the dao, readers pin it while they access its memtables and storage.
+    // Every state owns a reference to each of its parts, so a memtable is freed
+    // once the last state holding it is released.
     private static class State {
         final Config config;
         final Memory memory;
-        final Memory flushing;
+        // memtables waiting for flush, older first
+        final List<Memory> flushing;
         final Storage storage;
         final boolean closed;
+        private final AtomicInteger references = new AtomicInteger(1);
 
-        State(Config config, Memory memory, Memory flushing, Storage storage) {
+        // takes over a reference to each of the parts
+        State(Config config, Memory memory, List<Memory> flushing, Storage storage) {
             this.config = config;
             this.memory = memory;
             this.flushing = flushing;
@@ -304,51 +882,81 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             this.closed = false;
         }
 
+        // holds no references
         State(Config config, Storage storage, boolean closed) {
             this.config = config;
             this.memory = Memory.EMPTY;
-            this.flushing = Memory.EMPTY;
+            this.flushing = List.of();
             this.storage = storage;
             this.closed = closed;
         }
 
-        static State newState(Config config, Storage storage) {
+        // the state takes over the references to the memtables
+        static State newState(Config config, Storage storage, Memory memory, List<Memory> flushing) {
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
-                    Memory.EMPTY,
+                    memory,
+                    List.copyOf(flushing),
                     storage
             );
         }
 
-        public State prepareForFlush() {
+        // returns false if the state is already released, the caller is supposed to take the current one
+        boolean acquire() {
+            for (int count = references.get(); count > 0; count = references.get()) {
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if (references.decrementAndGet() != 0) {
+                return;
+            }
+            memory.release();
+            for (Memory flushed : flushing) {
+                flushed.release();
+            }
+            storage.release();
+        }
+
+        public State prepareForFlush(Memory newMemory) {
             checkNotClosed();
-            if (isFlushing()) {
-                throw new IllegalStateException("Already flushing");
+            List<Memory> newFlushing = new ArrayList<>(flushing.size() + 1);
+            newFlushing.addAll(flushing);
+            newFlushing.add(memory);
+            for (Memory flushed : newFlushing) {
+                flushed.acquire();
             }
+            storage.acquire();
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
-                    memory,
+                    newMemory,
+                    List.copyOf(newFlushing),
                     storage
             );
         }
 
-        public State afterFlush(Storage storage) {
+        public State afterFlush(Memory flushed, Storage storage) {
             checkNotClosed();
-            if (!isFlushing()) {
-                throw new IllegalStateException("Wasn't flushing");
+            if (flushing.isEmpty() || flushing.get(0) != flushed) {
+                throw new IllegalStateException("Flushed out of order");
             }
+            List<Memory> newFlushing = List.copyOf(flushing.subList(1, flushing.size()));
+            acquireMemtables(newFlushing);
             return new State(
                     config,
                     memory,
-                    Memory.EMPTY,
+                    newFlushing,
                     storage
             );
         }
 
         public State afterCompact(Storage storage) {
             checkNotClosed();
+            acquireMemtables(flushing);
             return new State(
                     config,
                     memory,
@@ -357,6 +965,13 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             );
         }
 
+        private void acquireMemtables(List<Memory> newFlushing) {
+            memory.acquire();
+            for (Memory flushed : newFlushing) {
+                flushed.acquire();
+            }
+        }
+
         public State afterClosed() {
             checkNotClosed();
             if (!storage.isClosed()) {
@@ -370,65 +985,186 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 throw new IllegalStateException("Already closed");
             }
         }
-
-        public boolean isFlushing() {
-            return this.flushing != Memory.EMPTY;
-        }
     }
 
+    // Keys and values are copied to off-heap skiplists, so the memtable keeps no caller objects,
+    // its size is the exact amount of memory it takes and it is freed in one step after the flush.
+    // Keys are spread over shards by hash, so concurrent writers rarely touch the same links and counters.
+    // The size is summed over the shards only when the shard written to exceeds its share of the threshold.
+    // The memtable becomes immutable as a whole when the state moves it to the flush queue and closes its gate.
+    // A shard and its arena are created by the first write to it, so an empty memtable takes no native memory.
     private static class Memory {
 
-        static final Memory EMPTY = new Memory(-1);
-        private final AtomicLong size = new AtomicLong();
-        private final AtomicBoolean oversized = new AtomicBoolean();
+        // read-only and never written, so it has no shards at all
+        static final Memory EMPTY = new Memory(-1, null);
+
+        // writes which are not a part of a batch, seen by every snapshot
+        static final long NO_BATCH = 0;
 
-        private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
-                new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
+        // a power of two
+        static final int SHARDS = Math.min(
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1),
+                16
+        );
+
+        // null until the first write to the shard
+        private final AtomicReferenceArray<ArenaSkipList> shards = new AtomicReferenceArray<>(SHARDS);
+
+        final WriterGate writers = new WriterGate();
+
+        // null if writes are not logged
+        final WriteAheadLog.Segment log;
 
         private final long sizeThreshold;
 
-        Memory(long sizeThreshold) {
+        // every state holding the memtable owns a reference, the first one is owned by the creator
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Memory(long sizeThreshold, WriteAheadLog.Segment log) {
             this.sizeThreshold = sizeThreshold;
+            this.log = log;
         }
 
         public boolean isEmpty() {
-            return delegate.isEmpty();
+            for (int i = 0; i < SHARDS; i++) {
+                ArenaSkipList shard = shards.get(i);
+                if (shard != null && !shard.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         public Collection<Entry<MemorySegment>> values() {
-            return delegate.values();
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<Entry<MemorySegment>> iterator() {
+                    // the writers have left the memtable, so every write is complete
+                    return get(null, null, Long.MAX_VALUE);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (int i = 0; i < SHARDS; i++) {
+                        ArenaSkipList shard = shards.get(i);
+                        size += shard == null ? 0 : shard.size();
+                    }
+                    return size;
+                }
+            };
+        }
+
+        // returns whether the memtable exceeds the threshold and is to be flushed,
+        // the log position orders concurrent writes of the key as the log replays them, 0 if the write is not logged
+        public boolean put(MemorySegment key, Entry<MemorySegment> entry, long logPosition) {
+            ArenaSkipList shard = write(key, entry, NO_BATCH, logPosition);
+            return shard.byteSize() > sizeThreshold / SHARDS && isOversized();
+        }
+
+        // the write is seen by snapshots not less than the batch sequence, the size is left to isOversized(),
+        // returns the record of the write for abort()
+        public long put(MemorySegment key, Entry<MemorySegment> entry, long sequence, long logPosition) {
+            return shardForWrite(shardIndex(key)).put(key, entry.value(), sequence, logPosition);
         }
 
-        public boolean put(MemorySegment key, Entry<MemorySegment> entry) {
+        // hides a write of a batch which is never published
+        public void abort(MemorySegment key, long record) {
+            shards.get(shardIndex(key)).abort(record);
+        }
+
+        private ArenaSkipList write(MemorySegment key, Entry<MemorySegment> entry, long sequence, long logPosition) {
+            ArenaSkipList shard = shardForWrite(shardIndex(key));
+            shard.put(key, entry.value(), sequence, logPosition);
+            return shard;
+        }
+
+        public boolean isOversized() {
+            long size = 0;
+            for (int i = 0; i < SHARDS; i++) {
+                ArenaSkipList shard = shards.get(i);
+                size += shard == null ? 0 : shard.byteSize();
+            }
+            return size > sizeThreshold;
+        }
+
+        // writers of the same shard may race to create it, the loser frees its arena
+        private ArenaSkipList shardForWrite(int index) {
             if (sizeThreshold == -1) {
                 throw new UnsupportedOperationException("Read-only map");
             }
-            Entry<MemorySegment> segmentEntry = delegate.put(key, entry);
-            long sizeDelta = Storage.getSizeOnDisk(entry);
-            if (segmentEntry != null) {
-                sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
+            ArenaSkipList shard = shards.get(index);
+            if (shard != null) {
+                return shard;
             }
-            long newSize = size.addAndGet(sizeDelta);
-            if (newSize > sizeThreshold) {
-                return !oversized.getAndSet(true);
+            ArenaSkipList created = new ArenaSkipList(sizeThreshold / SHARDS);
+            if (shards.compareAndSet(index, null, created)) {
+                return created;
             }
-            return false;
+            created.close();
+            return shards.get(index);
         }
 
-        public boolean overflow() {
-            return !oversized.getAndSet(true);
+        // from may be null for the very first key, writes of batches after the snapshot are skipped
+        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to, long snapshot) {
+            List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(SHARDS);
+            for (int i = 0; i < SHARDS; i++) {
+                ArenaSkipList shard = shards.get(i);
+                if (shard != null) {
+                    iterators.add(shard.get(from, to, snapshot));
+                }
+            }
+            // keys of the shards never intersect
+            return MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
         }
 
-        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
-            return to == null
-                    ? delegate.tailMap(from).values().iterator()
-                    : delegate.subMap(from, to).values().iterator();
+        public EntryCursor cursor(MemorySegment from, MemorySegment to, long snapshot) {
+            List<EntryCursor> cursors = new ArrayList<>(SHARDS);
+            for (int i = 0; i < SHARDS; i++) {
+                ArenaSkipList shard = shards.get(i);
+                if (shard != null) {
+                    cursors.add(shard.cursor(from, to, snapshot));
+                }
+            }
+            return MergeCursor.of(cursors);
         }
 
-        public Entry<MemorySegment> get(MemorySegment key) {
-            return delegate.get(key);
+        public Entry<MemorySegment> get(MemorySegment key, long snapshot) {
+            ArenaSkipList shard = shards.get(shardIndex(key));
+            return shard == null ? null : shard.get(key, snapshot);
+        }
+
+        private static int shardIndex(MemorySegment key) {
+            long size = key.byteSize();
+            long hash = size;
+            long offset = 0;
+            for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+                hash = hash * 31 + MemoryAccess.getLongAtOffset(key, offset);
+            }
+            for (; offset < size; offset++) {
+                hash = hash * 31 + MemoryAccess.getByteAtOffset(key, offset);
+            }
+            hash *= 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & (SHARDS - 1);
         }
-    }
 
+        // supposed to be called by an owner of another reference only
+        void acquire() {
+            if (references.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Memtable is already released");
+            }
+        }
 
+        void release() {
+            if (references.decrementAndGet() != 0) {
+                return;
+            }
+            for (int i = 0; i < SHARDS; i++) {
+                ArenaSkipList shard = shards.get(i);
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+        }
+    }
 }
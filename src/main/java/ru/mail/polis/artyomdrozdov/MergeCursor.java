@@ -0,0 +1,140 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.List;
+
+// Merges cursors like MergeIterator merges iterators: the newer entry wins for equal keys.
+// The cursors are kept in a binary heap of indexes, so a step creates no objects.
+// The current entry is the one of the cursor taken from the heap, which is not advanced until the next step.
+public final class MergeCursor implements EntryCursor {
+
+    private final EntryCursor[] cursors;
+    // indexes of the cursors with entries left, the smallest key (the newer cursor for equal keys) at the top
+    private final int[] heap;
+    private int heapSize;
+    private int current = -1;
+    private boolean started;
+
+    private MergeCursor(List<EntryCursor> cursors) {
+        this.cursors = cursors.toArray(new EntryCursor[0]);
+        this.heap = new int[this.cursors.length];
+    }
+
+    // cursors are strictly ordered by key, a later cursor is newer
+    public static EntryCursor of(List<EntryCursor> cursors) {
+        return cursors.size() == 1 ? cursors.get(0) : new MergeCursor(cursors);
+    }
+
+    @Override
+    public boolean advance() {
+        if (!started) {
+            started = true;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i].advance()) {
+                    push(i);
+                }
+            }
+        } else if (current >= 0 && cursors[current].advance()) {
+            push(current);
+        }
+        if (heapSize == 0) {
+            current = -1;
+            return false;
+        }
+        current = pop();
+        // older entries with the same key are shadowed
+        while (heapSize > 0 && compare(heap[0], current) == 0) {
+            int older = pop();
+            if (cursors[older].advance()) {
+                push(older);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public MemorySegment keyData() {
+        return cursors[current].keyData();
+    }
+
+    @Override
+    public long keyOffset() {
+        return cursors[current].keyOffset();
+    }
+
+    @Override
+    public long keySize() {
+        return cursors[current].keySize();
+    }
+
+    @Override
+    public boolean isTombstone() {
+        return cursors[current].isTombstone();
+    }
+
+    @Override
+    public MemorySegment valueData() {
+        return cursors[current].valueData();
+    }
+
+    @Override
+    public long valueOffset() {
+        return cursors[current].valueOffset();
+    }
+
+    @Override
+    public long valueSize() {
+        return cursors[current].valueSize();
+    }
+
+    private int compare(int index1, int index2) {
+        EntryCursor cursor1 = cursors[index1];
+        EntryCursor cursor2 = cursors[index2];
+        return MemorySegmentComparator.compare(
+                cursor1.keyData(), cursor1.keyOffset(), cursor1.keySize(),
+                cursor2.keyData(), cursor2.keyOffset(), cursor2.keySize()
+        );
+    }
+
+    // whether the first cursor goes before the second one in the heap
+    private boolean before(int index1, int index2) {
+        int result = compare(index1, index2);
+        return result < 0 || result == 0 && index1 > index2;
+    }
+
+    private void push(int index) {
+        int position = heapSize++;
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!before(index, heap[parent])) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = index;
+    }
+
+    private int pop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int position = 0;
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], last)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = last;
+        return top;
+    }
+}
@@ -0,0 +1,37 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+// Entry backed by the mapped files of a storage version,
+// the pin keeps the version from being released while the entry is reachable
+final class PinnedEntry implements Entry<MemorySegment> {
+
+    private final Entry<MemorySegment> entry;
+    private final Object pin;
+
+    PinnedEntry(Entry<MemorySegment> entry, Object pin) {
+        this.entry = entry;
+        this.pin = pin;
+    }
+
+    @Override
+    public MemorySegment key() {
+        return entry.key();
+    }
+
+    @Override
+    public MemorySegment value() {
+        return entry.value();
+    }
+
+    @Override
+    public boolean isTombstone() {
+        return entry.isTombstone();
+    }
+
+    @Override
+    public String toString() {
+        return entry.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis.artyomdrozdov;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Token bucket for bytes written by background flushes and compactions,
+// so they don't flood the page cache and the disk queue under foreground reads.
+// The rate adapts every ADJUST_INTERVAL_NANOS between maxBytesPerSecond / MIN_RATE_DIVISOR and maxBytesPerSecond:
+// it is halved while the foreground read latency (a get, or a scan up to its first entry) grows
+// above its long-term average and goes back up while reads keep steady or there are no reads at all.
+// Writers exceeding the bucket take a debt and wait for it to be paid off, so a large write is never rejected.
+final class RateLimiter {
+
+    static final RateLimiter UNLIMITED = new RateLimiter(Long.MAX_VALUE);
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_RATE_DIVISOR = 16;
+    // the bucket holds ADJUST_INTERVAL_NANOS worth of bytes at most
+    private static final double BURST_SECONDS = (double) ADJUST_INTERVAL_NANOS / TimeUnit.SECONDS.toNanos(1);
+    // latency is rising once the interval average exceeds the long-term one that much
+    private static final double LATENCY_RISE = 1.5;
+
+    private final long maxBytesPerSecond;
+    private final long minBytesPerSecond;
+
+    // foreground reads of the current interval
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+
+    // guarded by this
+    private long bytesPerSecond;
+    private double availableBytes;
+    private long lastRefillNanos;
+    private long lastAdjustNanos;
+    private double averageLatencyNanos;
+
+    // metrics
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder throttledBytes = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder slowdowns = new LongAdder();
+
+    RateLimiter(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.minBytesPerSecond = Math.max(maxBytesPerSecond / MIN_RATE_DIVISOR, 1);
+        this.bytesPerSecond = maxBytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastAdjustNanos = lastRefillNanos;
+    }
+
+    boolean isUnlimited() {
+        return maxBytesPerSecond == Long.MAX_VALUE;
+    }
+
+    // called before the bytes are written, blocks while the bucket is in debt
+    void acquire(long bytes) {
+        if (isUnlimited()) {
+            return;
+        }
+        writtenBytes.add(bytes);
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - lastAdjustNanos >= ADJUST_INTERVAL_NANOS) {
+                adjust(now);
+            }
+            availableBytes = Math.min(
+                    availableBytes + (double) (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1),
+                    bytesPerSecond * BURST_SECONDS
+            );
+            lastRefillNanos = now;
+            availableBytes -= bytes;
+            waitNanos = availableBytes >= 0
+                    ? 0
+                    : (long) (-availableBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        throttledBytes.add(bytes);
+        throttledNanos.add(waitNanos);
+        long deadline = System.nanoTime() + waitNanos;
+        for (long left = waitNanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    // called by foreground reads
+    void recordLatency(long nanos) {
+        if (isUnlimited()) {
+            return;
+        }
+        latencyNanos.add(nanos);
+        latencyCount.add(1);
+    }
+
+    private void adjust(long now) {
+        lastAdjustNanos = now;
+        long count = latencyCount.sumThenReset();
+        long nanos = latencyNanos.sumThenReset();
+        if (count == 0) {
+            // idle, the disk is all ours
+            increaseRate(bytesPerSecond);
+            return;
+        }
+        double latency = (double) nanos / count;
+        if (averageLatencyNanos > 0 && latency > averageLatencyNanos * LATENCY_RISE) {
+            bytesPerSecond = Math.max(minBytesPerSecond, bytesPerSecond / 2);
+            slowdowns.increment();
+        } else {
+            increaseRate(minBytesPerSecond);
+        }
+        averageLatencyNanos = averageLatencyNanos == 0 ? latency : averageLatencyNanos * 0.9 + latency * 0.1;
+    }
+
+    private void increaseRate(long delta) {
+        bytesPerSecond += Math.min(delta, maxBytesPerSecond - bytesPerSecond);
+    }
+
+    synchronized long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    Metrics metrics() {
+        return new Metrics(
+                writtenBytes.sum(),
+                throttledBytes.sum(),
+                TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum()),
+                slowdowns.sum(),
+                bytesPerSecond()
+        );
+    }
+
+    // totals since the limiter is created
+    record Metrics(long writtenBytes, long throttledBytes, long throttledMillis, long slowdowns, long bytesPerSecond) {
+    }
+}
@@ -0,0 +1,610 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Entry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// file structure:
+// (fileVersion)(entryCount)(tombstonesCount)(bloomOffset)(blockIndexOffset)(flags)(fencesOffset)(valueLogRefsOffset)
+// |(block)...|(blockIndex)|(bloom)|(fences)|(valueLogRefs)
+//
+// with FLAG_COMPRESSED every block is stored as (uncompressedSize)(LzCodec compressed block),
+// or as (uncompressedSize)(block) if compression didn't make it smaller
+//
+// block structure (records never cross block boundaries, a block exceeds BLOCK_SIZE only for a single huge record):
+// ((sharedPrefixSize/keySuffixSize/keySuffix/valueSize/value)...)|((restartOffset)...)(restartCount)
+// valueSize is -1 for a tombstone and VALUE_IN_LOG for a value moved to the value log,
+// the value is then replaced with (valueLogFileId/valueOffset/valueSize)
+//
+// every RESTART_INTERVAL-th record of a block is a restart point: it has no shared prefix and keeps the full key
+//
+// block index structure:
+// (blockCount)((blockOffset/firstKeySize/firstKey)...)
+//
+// fences structure (absent in a table without entries):
+// (minKeySize)(minKey)(maxKeySize)(maxKey)
+//
+// value log refs structure (bytes referenced by the table in each value log file):
+// (refsCount)((valueLogFileId/referencedBytes)...)
+final class SSTable {
+
+    static final long VERSION = 7;
+    static final int HEADER_SIZE = Long.BYTES * 8;
+    static final long FLAG_COMPRESSED = 1;
+    static final long BLOCK_SIZE = 4 * 1024;
+    static final int RESTART_INTERVAL = 16;
+    static final long VALUE_IN_LOG = -2;
+
+    private final Manifest.Table table;
+    private final MappedFile file;
+    private final MemorySegment sstable;
+    private final long recordsCount;
+    private final long tombstonesCount;
+    private final BloomFilter bloomFilter;
+    private final boolean compressed;
+
+    // fences: the smallest and the largest keys of the table, null for an empty table
+    private final MemorySegment minKey;
+    private final MemorySegment maxKey;
+
+    private final ValueLog valueLog;
+    private final Map<Long, Long> valueLogRefs;
+
+    // sparse index: first key of each block, copied to the heap
+    private final long[] blockOffsets;
+    private final MemorySegment[] firstKeys;
+    private final long dataEnd;
+
+    private SSTable(
+            Manifest.Table table,
+            MappedFile file,
+            long recordsCount,
+            long tombstonesCount,
+            BloomFilter bloomFilter,
+            boolean compressed,
+            MemorySegment minKey,
+            MemorySegment maxKey,
+            ValueLog valueLog,
+            Map<Long, Long> valueLogRefs,
+            long[] blockOffsets,
+            MemorySegment[] firstKeys,
+            long dataEnd) {
+        this.table = table;
+        this.file = file;
+        this.sstable = file.segment();
+        this.recordsCount = recordsCount;
+        this.tombstonesCount = tombstonesCount;
+        this.bloomFilter = bloomFilter;
+        this.compressed = compressed;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+        this.valueLog = valueLog;
+        this.valueLogRefs = valueLogRefs;
+        this.blockOffsets = blockOffsets;
+        this.firstKeys = firstKeys;
+        this.dataEnd = dataEnd;
+    }
+
+    static SSTable open(Manifest.Table table, MappedFile file, ValueLog valueLog) {
+        MemorySegment sstable = file.segment();
+        long fileVersion = MemoryAccess.getLongAtOffset(sstable, 0);
+        if (fileVersion != VERSION) {
+            throw new IllegalStateException("Unknown file version: " + fileVersion);
+        }
+        long recordsCount = MemoryAccess.getLongAtOffset(sstable, 8);
+        long tombstonesCount = MemoryAccess.getLongAtOffset(sstable, 16);
+        long bloomOffset = MemoryAccess.getLongAtOffset(sstable, 24);
+        long blockIndexOffset = MemoryAccess.getLongAtOffset(sstable, 32);
+        long flags = MemoryAccess.getLongAtOffset(sstable, 40);
+        long fencesOffset = MemoryAccess.getLongAtOffset(sstable, 48);
+        long valueLogRefsOffset = MemoryAccess.getLongAtOffset(sstable, 56);
+
+        MemorySegment minKey = null;
+        MemorySegment maxKey = null;
+        if (recordsCount > 0) {
+            minKey = readKeyToHeap(sstable, fencesOffset);
+            maxKey = readKeyToHeap(sstable, fencesOffset + Long.BYTES + minKey.byteSize());
+        }
+
+        MemorySegment blockIndex = MemorySegment.ofArray(new byte[(int) (bloomOffset - blockIndexOffset)]);
+        blockIndex.copyFrom(sstable.asSlice(blockIndexOffset, blockIndex.byteSize()));
+
+        int blockCount = (int) MemoryAccess.getLongAtOffset(blockIndex, 0);
+        long[] blockOffsets = new long[blockCount];
+        MemorySegment[] firstKeys = new MemorySegment[blockCount];
+        long offset = Long.BYTES;
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = MemoryAccess.getLongAtOffset(blockIndex, offset);
+            long keySize = MemoryAccess.getLongAtOffset(blockIndex, offset + Long.BYTES);
+            firstKeys[i] = blockIndex.asSlice(offset + Long.BYTES * 2, keySize);
+            offset += Long.BYTES * 2 + keySize;
+        }
+
+        return new SSTable(
+                table,
+                file,
+                recordsCount,
+                tombstonesCount,
+                BloomFilter.read(sstable, bloomOffset),
+                (flags & FLAG_COMPRESSED) != 0,
+                minKey,
+                maxKey,
+                valueLog,
+                readValueLogRefs(sstable, valueLogRefsOffset),
+                blockOffsets,
+                firstKeys,
+                blockIndexOffset
+        );
+    }
+
+    private static MemorySegment readKeyToHeap(MemorySegment sstable, long offset) {
+        long keySize = MemoryAccess.getLongAtOffset(sstable, offset);
+        return MemorySegment.ofArray(sstable.asSlice(offset + Long.BYTES, keySize).toByteArray());
+    }
+
+    static long writeFences(MemorySegment target, long offset, MemorySegment minKey, MemorySegment maxKey) {
+        long position = offset;
+        for (MemorySegment key : new MemorySegment[]{minKey, maxKey}) {
+            MemoryAccess.setLongAtOffset(target, position, key.byteSize());
+            target.asSlice(position + Long.BYTES, key.byteSize()).copyFrom(key);
+            position += Long.BYTES + key.byteSize();
+        }
+        return position - offset;
+    }
+
+    static long fencesSize(MemorySegment minKey, MemorySegment maxKey) {
+        return Long.BYTES * 2 + minKey.byteSize() + maxKey.byteSize();
+    }
+
+    private static Map<Long, Long> readValueLogRefs(MemorySegment sstable, long offset) {
+        long refsCount = MemoryAccess.getLongAtOffset(sstable, offset);
+        Map<Long, Long> refs = new HashMap<>();
+        for (long i = 0; i < refsCount; i++) {
+            long position = offset + Long.BYTES + i * Long.BYTES * 2;
+            refs.put(
+                    MemoryAccess.getLongAtOffset(sstable, position),
+                    MemoryAccess.getLongAtOffset(sstable, position + Long.BYTES)
+            );
+        }
+        return refs;
+    }
+
+    static long writeValueLogRefs(MemorySegment target, long offset, Map<Long, Long> refs) {
+        MemoryAccess.setLongAtOffset(target, offset, refs.size());
+        long position = offset + Long.BYTES;
+        for (Map.Entry<Long, Long> ref : refs.entrySet()) {
+            MemoryAccess.setLongAtOffset(target, position, ref.getKey());
+            MemoryAccess.setLongAtOffset(target, position + Long.BYTES, ref.getValue());
+            position += Long.BYTES * 2;
+        }
+        return position - offset;
+    }
+
+    static long valueLogRefsSize(Map<Long, Long> refs) {
+        return Long.BYTES + (long) refs.size() * Long.BYTES * 2;
+    }
+
+    static long blockIndexRecordSize(MemorySegment firstKey) {
+        return Long.BYTES * 2 + firstKey.byteSize();
+    }
+
+    static long writeBlockIndexRecord(MemorySegment sstable, long offset, long blockOffset, MemorySegment firstKey) {
+        MemoryAccess.setLongAtOffset(sstable, offset, blockOffset);
+        MemoryAccess.setLongAtOffset(sstable, offset + Long.BYTES, firstKey.byteSize());
+        sstable.asSlice(offset + Long.BYTES * 2, firstKey.byteSize()).copyFrom(firstKey);
+        return blockIndexRecordSize(firstKey);
+    }
+
+    long id() {
+        return table.id();
+    }
+
+    Manifest.Table table() {
+        return table;
+    }
+
+    int level() {
+        return table.level();
+    }
+
+    long byteSize() {
+        return sstable.byteSize();
+    }
+
+    // first keys of the blocks, blocks are of about the same size so the keys sample the key space evenly
+    List<MemorySegment> blockFirstKeys() {
+        return Collections.unmodifiableList(Arrays.asList(firstKeys));
+    }
+
+    // null for an empty table
+    MemorySegment minKey() {
+        return minKey;
+    }
+
+    MemorySegment maxKey() {
+        return maxKey;
+    }
+
+    MappedFile file() {
+        return file;
+    }
+
+    long recordsCount() {
+        return recordsCount;
+    }
+
+    long tombstonesCount() {
+        return tombstonesCount;
+    }
+
+    // share of the records which are tombstones, 0 for an empty table
+    double tombstoneRatio() {
+        return recordsCount == 0 ? 0 : (double) tombstonesCount / recordsCount;
+    }
+
+    // bytes referenced by the table in each value log file
+    Map<Long, Long> valueLogRefs() {
+        return valueLogRefs;
+    }
+
+    // false only if the table surely has no such key
+    boolean mayContain(MemorySegment key) {
+        return minKey != null
+                && MemorySegmentComparator.INSTANCE.compare(key, minKey) >= 0
+                && MemorySegmentComparator.INSTANCE.compare(key, maxKey) <= 0
+                && bloomFilter.mightContain(key);
+    }
+
+    // whether the table has keys in [from;to), null to means no upper bound
+    boolean overlaps(MemorySegment from, MemorySegment to) {
+        return minKey != null
+                && MemorySegmentComparator.INSTANCE.compare(maxKey, from) >= 0
+                && (to == null || MemorySegmentComparator.INSTANCE.compare(minKey, to) < 0);
+    }
+
+    // the last block which may contain the key (its first key is less or equal)
+    private int blockFor(MemorySegment key) {
+        int left = 0;
+        int right = firstKeys.length - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, firstKeys[mid]);
+            if (comparedResult > 0) {
+                left = mid + 1;
+            } else if (comparedResult < 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return Math.max(right, 0);
+    }
+
+    private long blockEnd(int block) {
+        return block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataEnd;
+    }
+
+    Entry<MemorySegment> get(MemorySegment key) {
+        if (!mayContain(key)) {
+            return null;
+        }
+        BlockCursor cursor = new BlockCursor(false);
+        cursor.seek(key);
+        if (!cursor.valid || cursor.compareKey(key) != 0) {
+            return null;
+        }
+        return cursor.entry();
+    }
+
+    Iterator<Entry<MemorySegment>> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+        long endPosition = endPosition(keyTo);
+        BlockCursor cursor = new BlockCursor(false);
+        cursor.seek(keyFrom);
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.valid && cursor.position() < endPosition;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                Entry<MemorySegment> entry = cursor.entry();
+                cursor.advance();
+                return entry;
+            }
+        };
+    }
+
+    EntryCursor cursor(MemorySegment keyFrom, MemorySegment keyTo) {
+        return new TableCursor(keyFrom, endPosition(keyTo));
+    }
+
+    // position of the first record not less than the key, the position past all records for null
+    private long endPosition(MemorySegment keyTo) {
+        if (keyTo != null) {
+            BlockCursor end = new BlockCursor(false);
+            end.seek(keyTo);
+            if (end.valid) {
+                return end.position();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size) {
+        return buffer != null && buffer.length >= size ? buffer : new byte[Math.max(size, (int) BLOCK_SIZE)];
+    }
+
+    // Exposes the records of the block cursor in place: the key in its buffer, the value in the block
+    // or in the value log file, so a step allocates nothing unless it enters a compressed block.
+    private final class TableCursor implements EntryCursor {
+        private final BlockCursor cursor = new BlockCursor(true);
+        private final long endPosition;
+        private boolean started;
+
+        private MemorySegment valueData;
+        private long valueOffset;
+        private long valueSize;
+        // the value log file of the last value found there
+        private long valueLogFileId = -1;
+        private MemorySegment valueLogFile;
+
+        TableCursor(MemorySegment keyFrom, long endPosition) {
+            this.endPosition = endPosition;
+            cursor.seek(keyFrom);
+        }
+
+        @Override
+        public boolean advance() {
+            if (started && cursor.valid) {
+                cursor.advance();
+            }
+            started = true;
+            if (!cursor.valid || cursor.position() >= endPosition) {
+                cursor.valid = false;
+                return false;
+            }
+            if (cursor.valueSize == VALUE_IN_LOG) {
+                long pointerOffset = cursor.valueOffset + Long.BYTES;
+                long fileId = MemoryAccess.getLongAtOffset(cursor.data, pointerOffset);
+                if (fileId != valueLogFileId) {
+                    valueLogFile = valueLog.segment(fileId);
+                    valueLogFileId = fileId;
+                }
+                valueData = valueLogFile;
+                valueOffset = MemoryAccess.getLongAtOffset(cursor.data, pointerOffset + Long.BYTES);
+                valueSize = MemoryAccess.getLongAtOffset(cursor.data, pointerOffset + Long.BYTES * 2);
+            } else {
+                valueData = cursor.data;
+                valueOffset = cursor.valueOffset + Long.BYTES;
+                valueSize = cursor.valueSize;
+            }
+            return true;
+        }
+
+        @Override
+        public MemorySegment keyData() {
+            return cursor.keySegment;
+        }
+
+        @Override
+        public long keyOffset() {
+            return 0;
+        }
+
+        @Override
+        public long keySize() {
+            return cursor.keySize;
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return cursor.valueSize == -1;
+        }
+
+        @Override
+        public MemorySegment valueData() {
+            return valueData;
+        }
+
+        @Override
+        public long valueOffset() {
+            return valueOffset;
+        }
+
+        @Override
+        public long valueSize() {
+            return valueSize;
+        }
+    }
+
+    // Decodes records one by one into a reusable key buffer, moving across blocks.
+    // Offsets are relative to the current block data, which is either the mapped file or a decompressed copy.
+    // Decompressed copies are reused only if nothing sliced from a block outlives the next block.
+    private final class BlockCursor {
+        private final boolean reuseBlocks;
+        private int block;
+        private MemorySegment data;
+        private long blockStart;
+        private int restartsCount;
+        private long recordsEnd;
+        private long nextOffset;
+
+        boolean valid;
+        private long recordOffset;
+        private byte[] key = new byte[64];
+        // view of the key buffer
+        private MemorySegment keySegment = MemorySegment.ofArray(key);
+        private int keySize;
+        private long valueOffset;
+        private long valueSize;
+        private byte[] storedBuffer;
+        private byte[] uncompressedBuffer;
+        // views of the reused buffers, so entering a block creates no more objects than it has to
+        private MemorySegment storedSegment;
+        private MemorySegment uncompressedSegment;
+
+        BlockCursor(boolean reuseBlocks) {
+            this.reuseBlocks = reuseBlocks;
+        }
+
+        private void enterBlock(int newBlock) {
+            block = newBlock;
+            long end;
+            if (compressed) {
+                long storedOffset = blockOffsets[block] + Integer.BYTES;
+                int storedSize = (int) (blockEnd(block) - storedOffset);
+                int uncompressedSize = MemoryAccess.getIntAtOffset(sstable, blockOffsets[block]);
+                byte[] stored;
+                if (reuseBlocks) {
+                    byte[] grown = ensureCapacity(storedBuffer, storedSize);
+                    if (grown != storedBuffer) {
+                        storedBuffer = grown;
+                        storedSegment = MemorySegment.ofArray(grown);
+                    }
+                    stored = storedBuffer;
+                    storedSegment.asSlice(0, storedSize).copyFrom(sstable.asSlice(storedOffset, storedSize));
+                } else {
+                    stored = sstable.asSlice(storedOffset, storedSize).toByteArray();
+                }
+                byte[] uncompressed = stored;
+                if (storedSize != uncompressedSize) {
+                    // values are sliced from the block, so it is reused only if they don't outlive it
+                    if (reuseBlocks) {
+                        byte[] grown = ensureCapacity(uncompressedBuffer, uncompressedSize);
+                        if (grown != uncompressedBuffer) {
+                            uncompressedBuffer = grown;
+                            uncompressedSegment = MemorySegment.ofArray(grown);
+                        }
+                        uncompressed = uncompressedBuffer;
+                    } else {
+                        uncompressed = new byte[uncompressedSize];
+                    }
+                    LzCodec.decompress(stored, storedSize, uncompressed, uncompressedSize);
+                }
+                if (!reuseBlocks) {
+                    data = MemorySegment.ofArray(uncompressed);
+                } else if (uncompressed == uncompressedBuffer) {
+                    data = uncompressedSegment;
+                } else {
+                    data = storedSegment;
+                }
+                blockStart = 0;
+                end = uncompressedSize;
+            } else {
+                data = sstable;
+                blockStart = blockOffsets[block];
+                end = blockEnd(block);
+            }
+            restartsCount = MemoryAccess.getIntAtOffset(data, end - Integer.BYTES);
+            recordsEnd = end - (long) Integer.BYTES * (restartsCount + 1);
+            nextOffset = blockStart;
+        }
+
+        private long restartAt(int restart) {
+            return blockStart + MemoryAccess.getIntAtOffset(data, recordsEnd + (long) restart * Integer.BYTES);
+        }
+
+        // monotonic position of the current record in the file
+        long position() {
+            return ((long) block << 32) | (recordOffset - blockStart);
+        }
+
+        // positions on the first record with the key greater or equal to the requested one
+        void seek(MemorySegment target) {
+            if (firstKeys.length == 0) {
+                valid = false;
+                return;
+            }
+            enterBlock(blockFor(target));
+
+            int left = 0;
+            int right = restartsCount - 1;
+            while (left <= right) {
+                int mid = (left + right) >>> 1;
+                long offset = restartAt(mid);
+                int size = MemoryAccess.getIntAtOffset(data, offset + Integer.BYTES);
+                long keyOffset = offset + Integer.BYTES * 2;
+                if (MemorySegmentComparator.compare(data, keyOffset, size, target, 0, target.byteSize()) <= 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid - 1;
+                }
+            }
+
+            nextOffset = restartAt(Math.max(right, 0));
+            while (advance()) {
+                if (compareKey(target) >= 0) {
+                    return;
+                }
+            }
+        }
+
+        boolean advance() {
+            while (nextOffset >= recordsEnd) {
+                if (block + 1 >= blockOffsets.length) {
+                    valid = false;
+                    return false;
+                }
+                enterBlock(block + 1);
+            }
+
+            recordOffset = nextOffset;
+            int shared = MemoryAccess.getIntAtOffset(data, recordOffset);
+            int suffixSize = MemoryAccess.getIntAtOffset(data, recordOffset + Integer.BYTES);
+            keySize = shared + suffixSize;
+            if (keySize > key.length) {
+                key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+                keySegment = MemorySegment.ofArray(key);
+            }
+            long suffixOffset = recordOffset + Integer.BYTES * 2;
+            for (int i = 0; i < suffixSize; i++) {
+                key[shared + i] = MemoryAccess.getByteAtOffset(data, suffixOffset + i);
+            }
+
+            valueOffset = suffixOffset + suffixSize;
+            valueSize = MemoryAccess.getLongAtOffset(data, valueOffset);
+            if (valueSize == VALUE_IN_LOG) {
+                nextOffset = valueOffset + Long.BYTES + ValueLog.Pointer.SIZE;
+            } else {
+                nextOffset = valueOffset + Long.BYTES + (valueSize == -1 ? 0 : valueSize);
+            }
+            valid = true;
+            return true;
+        }
+
+        int compareKey(MemorySegment other) {
+            long otherSize = other.byteSize();
+            long size = Math.min(keySize, otherSize);
+            for (int i = 0; i < size; i++) {
+                int result = Byte.compareUnsigned(key[i], MemoryAccess.getByteAtOffset(other, i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Long.compare(keySize, otherSize);
+        }
+
+        // Iterator callers may keep an entry after next(), the merge does it across steps,
+        // so the returned entry gets its own key copy and value slice instead of sharing the key buffer
+        Entry<MemorySegment> entry() {
+            MemorySegment entryKey = MemorySegment.ofArray(Arrays.copyOf(key, keySize));
+            if (valueSize == VALUE_IN_LOG) {
+                return new ValueLogEntry(entryKey, ValueLog.Pointer.read(data, valueOffset + Long.BYTES), valueLog);
+            }
+            return new BaseEntry<>(
+                    entryKey,
+                    valueSize == -1 ? null : data.asSlice(valueOffset + Long.BYTES, valueSize)
+            );
+        }
+    }
+}
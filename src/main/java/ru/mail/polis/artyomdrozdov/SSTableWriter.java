@@ -0,0 +1,208 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Single pass sstable writer: blocks are streamed through a buffered channel,
+// block index is collected aside, bloom filter and header are written at the end.
+// Values larger than Config.valueSeparationThresholdBytes are appended to a new value log file.
+// Writes of both files are paced by the rate limiter.
+// See SSTable for the file structure.
+final class SSTableWriter implements Closeable {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Config config;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final BlockEncoder encoder;
+    private final BloomFilter bloomFilter;
+    private final ValueLog.Writer valueLogWriter;
+    private final RateLimiter rateLimiter;
+    private final Set<Long> relocatedValueLogFiles;
+    private final Map<Long, Long> valueLogRefs = new TreeMap<>();
+
+    private byte[] blockIndex = new byte[1024];
+    private MemorySegment blockIndexSegment = MemorySegment.ofArray(blockIndex);
+    private long blockIndexSize = Long.BYTES;
+    private long blockCount;
+
+    private MemorySegment minKey;
+    private MemorySegment maxKey;
+    private long entriesCount;
+    private long tombstonesCount;
+
+    // values from relocatedValueLogFiles are copied to the new value log file instead of keeping the pointers
+    SSTableWriter(
+            Config config,
+            Manifest manifest,
+            Path path,
+            long expectedEntriesCount,
+            Set<Long> relocatedValueLogFiles,
+            RateLimiter rateLimiter) throws IOException {
+        this.config = config;
+        this.relocatedValueLogFiles = relocatedValueLogFiles;
+        this.rateLimiter = rateLimiter;
+        this.valueLogWriter = new ValueLog.Writer(config, manifest, rateLimiter);
+        this.channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+        );
+        this.encoder = new BlockEncoder(this::write, SSTable.HEADER_SIZE, config.blockCompression());
+        this.bloomFilter = BloomFilter.create(expectedEntriesCount, config.bloomFilterFalsePositiveRate());
+
+        // header is finalized in finish()
+        write(new byte[SSTable.HEADER_SIZE], SSTable.HEADER_SIZE);
+    }
+
+    void write(Entry<MemorySegment> entry) throws IOException {
+        ValueLog.Pointer pointer = valueLogPointer(entry);
+        if (pointer != null) {
+            valueLogRefs.merge(pointer.fileId(), pointer.length(), Long::sum);
+        }
+        if (encoder.add(entry, pointer)) {
+            addBlockIndexRecord(encoder.blockStart(), entry.key());
+        }
+        bloomFilter.add(entry.key());
+        if (minKey == null) {
+            minKey = entry.key();
+        }
+        maxKey = entry.key();
+        if (entry.isTombstone()) {
+            tombstonesCount++;
+        }
+        entriesCount++;
+    }
+
+    private ValueLog.Pointer valueLogPointer(Entry<MemorySegment> entry) throws IOException {
+        if (entry instanceof ValueLogEntry valueLogEntry
+                && !relocatedValueLogFiles.contains(valueLogEntry.pointer().fileId())) {
+            return valueLogEntry.pointer();
+        }
+        MemorySegment value = entry.value();
+        if (value == null || value.byteSize() <= config.valueSeparationThresholdBytes()) {
+            return null;
+        }
+        return valueLogWriter.append(entry.key(), value);
+    }
+
+    // size of the blocks written so far
+    long dataSize() {
+        return encoder.offset();
+    }
+
+    // value log files referenced by the written table
+    Set<Long> valueLogFiles() {
+        return valueLogRefs.keySet();
+    }
+
+    // value log file created by the writer, -1 if none
+    long createdValueLogFile() {
+        return valueLogWriter.fileId();
+    }
+
+    // returns size of the written file
+    long finish() throws IOException {
+        // pointers must never outlive the values
+        valueLogWriter.force();
+
+        encoder.finish();
+
+        long blockIndexOffset = encoder.offset();
+        MemoryAccess.setLongAtOffset(blockIndexSegment, 0, blockCount);
+        write(blockIndex, (int) blockIndexSize);
+
+        long bloomOffset = blockIndexOffset + blockIndexSize;
+        byte[] bloom = new byte[(int) bloomFilter.byteSize()];
+        bloomFilter.write(MemorySegment.ofArray(bloom), 0);
+        write(bloom, bloom.length);
+
+        long fencesOffset = bloomOffset + bloom.length;
+        long fencesSize = 0;
+        if (minKey != null) {
+            byte[] fences = new byte[(int) SSTable.fencesSize(minKey, maxKey)];
+            fencesSize = SSTable.writeFences(MemorySegment.ofArray(fences), 0, minKey, maxKey);
+            write(fences, fences.length);
+        }
+
+        long valueLogRefsOffset = fencesOffset + fencesSize;
+        byte[] refs = new byte[(int) SSTable.valueLogRefsSize(valueLogRefs)];
+        SSTable.writeValueLogRefs(MemorySegment.ofArray(refs), 0, valueLogRefs);
+        write(refs, refs.length);
+        flushBuffer();
+
+        byte[] header = new byte[SSTable.HEADER_SIZE];
+        MemorySegment headerSegment = MemorySegment.ofArray(header);
+        MemoryAccess.setLongAtOffset(headerSegment, 0, SSTable.VERSION);
+        MemoryAccess.setLongAtOffset(headerSegment, 8, entriesCount);
+        MemoryAccess.setLongAtOffset(headerSegment, 16, tombstonesCount);
+        MemoryAccess.setLongAtOffset(headerSegment, 24, bloomOffset);
+        MemoryAccess.setLongAtOffset(headerSegment, 32, blockIndexOffset);
+        MemoryAccess.setLongAtOffset(headerSegment, 40, config.blockCompression() ? SSTable.FLAG_COMPRESSED : 0);
+        MemoryAccess.setLongAtOffset(headerSegment, 48, fencesOffset);
+        MemoryAccess.setLongAtOffset(headerSegment, 56, valueLogRefsOffset);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        long position = 0;
+        while (headerBuffer.hasRemaining()) {
+            position += channel.write(headerBuffer, position);
+        }
+
+        channel.force(true);
+        return valueLogRefsOffset + refs.length;
+    }
+
+    private void addBlockIndexRecord(long blockOffset, MemorySegment firstKey) {
+        long recordSize = SSTable.blockIndexRecordSize(firstKey);
+        if (blockIndexSize + recordSize > blockIndex.length) {
+            blockIndex = Arrays.copyOf(blockIndex, (int) Math.max(blockIndexSize + recordSize, blockIndex.length * 2L));
+            blockIndexSegment = MemorySegment.ofArray(blockIndex);
+        }
+        blockIndexSize += SSTable.writeBlockIndexRecord(blockIndexSegment, blockIndexSize, blockOffset, firstKey);
+        blockCount++;
+    }
+
+    private void write(byte[] data, int size) throws IOException {
+        if (size > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (size > buffer.capacity()) {
+            rateLimiter.acquire(size);
+            ByteBuffer direct = ByteBuffer.wrap(data, 0, size);
+            while (direct.hasRemaining()) {
+                channel.write(direct);
+            }
+            return;
+        }
+        buffer.put(data, 0, size);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        rateLimiter.acquire(buffer.remaining());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (valueLogWriter) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mail.polis.artyomdrozdov;
+
+import ru.mail.polis.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Picks compaction steps merging similar-sized tables of level 0:
+// a run of at least sizeTieredMinThreshold adjacent tables, each of them within sizeTieredBucketRatio
+// of the run average, is merged into a single table (at most sizeTieredMaxThreshold tables at once).
+// When there are sizeTieredMaxThreshold tables and no such run, the cheapest run is merged anyway
+// to keep the number of tables a read has to probe bounded.
+// Only adjacent tables are merged: the output takes place of the newest input, so nothing may lie in between.
+// A table full of tombstones is merged with the older tables overlapping it, dropping the tombstones.
+final class SizeTieredCompaction implements CompactionPicker {
+
+    private final Config config;
+
+    SizeTieredCompaction(Config config) {
+        this.config = config;
+    }
+
+    @Override
+    public Task pick(List<SSTable> sstables) {
+        List<SSTable> levelZero = new ArrayList<>();
+        for (SSTable sstable : sstables) {
+            if (sstable.level() == 0) {
+                levelZero.add(sstable);
+            }
+        }
+        int minThreshold = Math.max(config.sizeTieredMinThreshold(), 2);
+        if (levelZero.size() >= minThreshold) {
+            List<SSTable> similar = similarRun(levelZero, minThreshold);
+            if (similar != null) {
+                return new Task(similar, 0);
+            }
+            if (levelZero.size() >= config.sizeTieredMaxThreshold()) {
+                return new Task(cheapestRun(levelZero, minThreshold), 0);
+            }
+        }
+        return tombstoneCompaction(sstables, levelZero);
+    }
+
+    // a table full of tombstones is merged with the run of older tables starting from the oldest one overlapping it,
+    // so nothing older may hold the deleted keys
+    private Task tombstoneCompaction(List<SSTable> sstables, List<SSTable> levelZero) {
+        // tables of other levels are left by the leveled strategy and are never merged with level 0
+        List<SSTable> otherLevels = sstables.subList(0, sstables.size() - levelZero.size());
+        List<SSTable> candidates = new ArrayList<>();
+        for (SSTable table : levelZero) {
+            if (!CompactionPicker.overlapsAny(table, otherLevels)) {
+                candidates.add(table);
+            }
+        }
+        SSTable tombstones = CompactionPicker.mostTombstones(candidates, config.tombstoneCompactionRatio());
+        if (tombstones == null) {
+            return null;
+        }
+        int end = levelZero.indexOf(tombstones);
+        int start = end;
+        for (int i = end - 1; i >= 0; i--) {
+            if (CompactionPicker.overlaps(levelZero.get(i), tombstones)) {
+                start = i;
+            }
+        }
+        return new Task(levelZero.subList(start, end + 1), 0);
+    }
+
+    // the longest run of similar-sized tables, null if there is no run long enough
+    private List<SSTable> similarRun(List<SSTable> tables, int minThreshold) {
+        int maxThreshold = Math.max(config.sizeTieredMaxThreshold(), minThreshold);
+        int bestStart = -1;
+        int bestLength = 0;
+        for (int start = 0; start < tables.size(); start++) {
+            long runBytes = 0;
+            int length = 0;
+            while (start + length < tables.size() && length < maxThreshold) {
+                long size = tables.get(start + length).byteSize();
+                double average = (double) (runBytes + size) / (length + 1);
+                if (!isSimilar(size, average) || !isSimilar(tables.get(start).byteSize(), average)) {
+                    break;
+                }
+                runBytes += size;
+                length++;
+            }
+            if (length >= minThreshold && length > bestLength) {
+                bestStart = start;
+                bestLength = length;
+            }
+        }
+        return bestStart < 0 ? null : tables.subList(bestStart, bestStart + bestLength);
+    }
+
+    private boolean isSimilar(long size, double average) {
+        double ratio = config.sizeTieredBucketRatio();
+        return size <= average * ratio && size * ratio >= average;
+    }
+
+    private static List<SSTable> cheapestRun(List<SSTable> tables, int length) {
+        int bestStart = 0;
+        long bestBytes = Long.MAX_VALUE;
+        for (int start = 0; start + length <= tables.size(); start++) {
+            long bytes = 0;
+            for (int i = start; i < start + length; i++) {
+                bytes += tables.get(i).byteSize();
+            }
+            if (bytes < bestBytes) {
+                bestStart = start;
+                bestBytes = bytes;
+            }
+        }
+        return tables.subList(bestStart, bestStart + length);
+    }
+
+    // a single table, other levels may only come from the leveled strategy used before
+    @Override
+    public int fullCompactionLevel(List<SSTable> sstables) {
+        int level = 0;
+        for (SSTable sstable : sstables) {
+            level = Math.max(level, sstable.level());
+        }
+        return level;
+    }
+
+    // split outputs would look like a run of small tables
+    @Override
+    public long maxTableSize() {
+        return Long.MAX_VALUE;
+    }
+}
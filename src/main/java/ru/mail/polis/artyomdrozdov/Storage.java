@@ -1,6 +1,5 @@
 package ru.mail.polis.artyomdrozdov;
 
-import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 import ru.mail.polis.BaseEntry;
@@ -14,11 +13,23 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Storage implements Closeable {
 
@@ -35,102 +46,110 @@ class Storage implements Closeable {
         }
     });
 
-    private static final long VERSION = 0;
-    private static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
-    private static final int INDEX_RECORD_SIZE = Long.BYTES;
+    // range compactions, see compact()
+    private static final ForkJoinPool COMPACTION_POOL = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Storage-Compaction-" + thread.getPoolIndex());
+                return thread;
+            },
+            null,
+            false
+    );
+
+    private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[]{});
 
     private static final String FILE_NAME = "data";
     private static final String FILE_EXT = ".dat";
-    private static final String FILE_EXT_TMP = ".tmp";
-    private static final String COMPACTED_FILE = FILE_NAME + "_compacted_" + FILE_EXT;
-
-    static Storage load(Config config) throws IOException {
-        Path basePath = config.basePath();
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        if (Files.exists(compactedFile)) {
-            finishCompact(config, compactedFile);
-        }
 
-        ArrayList<MemorySegment> sstables = new ArrayList<>();
-        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+    // files to open are listed by the manifest, anything else in the directory is ignored
+    static Storage load(Config config, Manifest manifest) throws IOException {
+        ArrayList<SSTable> sstables = new ArrayList<>();
+        ValueLog valueLog = ValueLog.load(config, manifest.valueLogs());
 
-        // FIXME check existing files
-        for (int i = 0; ; i++) {
-            Path nextFile = basePath.resolve(FILE_NAME + i + FILE_EXT);
-            try {
-                sstables.add(mapForRead(scope, nextFile));
-            } catch (NoSuchFileException e) {
-                break;
-            }
+        for (Manifest.Table table : manifest.tables()) {
+            sstables.add(SSTable.open(table, MappedFile.map(tableFile(config, table.id())), valueLog));
         }
 
-        boolean hasTombstones = !sstables.isEmpty() && MemoryAccess.getLongAtOffset(sstables.get(0), 16) == 1;
-        return new Storage(scope, sstables, hasTombstones);
+        return new Storage(sstables, valueLog, valueLogLiveBytes(sstables));
+    }
+
+    static Path tableFile(Config config, long tableId) {
+        return config.basePath().resolve(FILE_NAME + tableId + FILE_EXT);
     }
 
     // it is supposed that entries can not be changed externally during this method call
-    static void save(
+    static Change save(
             Config config,
-            Storage previousState,
-            Collection<Entry<MemorySegment>> entries) throws IOException {
-        int nextSSTableIndex = previousState.sstables.size();
-        Path sstablePath = config.basePath().resolve(FILE_NAME + nextSSTableIndex + FILE_EXT);
-        save(entries::iterator, sstablePath);
+            Manifest manifest,
+            Collection<Entry<MemorySegment>> entries,
+            RateLimiter rateLimiter) throws IOException {
+        Written written = save(
+                config,
+                manifest,
+                entries::iterator,
+                entries.size(),
+                Long.MAX_VALUE,
+                Set.of(),
+                rateLimiter
+        );
+        if (written.tables().isEmpty()) {
+            return new Change(List.of(), List.of(), 0, List.of(), Set.of());
+        }
+        Manifest.Table table = manifest.addTable(written.tables().get(0), written.createdValueLogFile());
+        return new Change(List.of(), List.of(table), written.size(), written.createdValueLogFiles(), Set.of());
     }
 
-    private static void save(
+    // entries are split into tables with at most maxTableSize bytes of blocks (no tables for no entries)
+    // expectedEntriesPerTable is an estimation used to size the bloom filters
+    // the tables are invisible until they are committed to the manifest, partially written ones are removed
+    private static Written save(
+            Config config,
+            Manifest manifest,
             Data entries,
-            Path sstablePath
+            long expectedEntriesPerTable,
+            long maxTableSize,
+            Set<Long> relocatedValueLogFiles,
+            RateLimiter rateLimiter
     ) throws IOException {
-
-        Path sstableTmpPath = sstablePath.resolveSibling(sstablePath.getFileName().toString() + FILE_EXT_TMP);
-
-        Files.deleteIfExists(sstableTmpPath);
-        Files.createFile(sstableTmpPath);
-
-        try (ResourceScope writeScope = ResourceScope.newConfinedScope()) {
-            long size = 0;
-            long entriesCount = 0;
-            boolean hasTombstone = false;
-            for (Iterator<Entry<MemorySegment>> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry<MemorySegment> entry = iterator.next();
-                size += getSize(entry);
-                if (entry.isTombstone()) {
-                    hasTombstone = true;
+        List<Long> tables = new ArrayList<>();
+        List<Long> createdValueLogFiles = new ArrayList<>();
+        Set<Long> valueLogFiles = new HashSet<>();
+        long size = 0;
+        try {
+            Iterator<Entry<MemorySegment>> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                long tableId = manifest.nextFileId();
+                tables.add(tableId);
+                try (SSTableWriter writer = new SSTableWriter(
+                        config,
+                        manifest,
+                        tableFile(config, tableId),
+                        expectedEntriesPerTable,
+                        relocatedValueLogFiles,
+                        rateLimiter)) {
+                    try {
+                        while (iterator.hasNext() && writer.dataSize() < maxTableSize) {
+                            writer.write(iterator.next());
+                        }
+                        size += writer.finish();
+                    } finally {
+                        if (writer.createdValueLogFile() >= 0) {
+                            createdValueLogFiles.add(writer.createdValueLogFile());
+                        }
+                    }
+                    valueLogFiles.addAll(writer.valueLogFiles());
                 }
-                entriesCount++;
             }
-
-            long dataStart = INDEX_HEADER_SIZE + INDEX_RECORD_SIZE * entriesCount;
-
-            MemorySegment nextSSTable = MemorySegment.mapFile(
-                            sstableTmpPath,
-                            0,
-                            dataStart + size,
-                            FileChannel.MapMode.READ_WRITE,
-                            writeScope
-            );
-
-            long index = 0;
-            long offset = dataStart;
-            for (Iterator<Entry<MemorySegment>> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry<MemorySegment> entry = iterator.next();
-                MemoryAccess.setLongAtOffset(nextSSTable, INDEX_HEADER_SIZE + index * INDEX_RECORD_SIZE, offset);
-
-                offset += writeRecord(nextSSTable, offset, entry.key());
-                offset += writeRecord(nextSSTable, offset, entry.value());
-
-                index++;
+        } catch (IOException | RuntimeException e) {
+            for (long tableId : tables) {
+                Files.deleteIfExists(tableFile(config, tableId));
             }
-
-            MemoryAccess.setLongAtOffset(nextSSTable, 0, VERSION);
-            MemoryAccess.setLongAtOffset(nextSSTable, 8, entriesCount);
-            MemoryAccess.setLongAtOffset(nextSSTable, 16, hasTombstone ? 1 : 0);
-
-            nextSSTable.force();
+            ValueLog.delete(config, createdValueLogFiles);
+            throw e;
         }
-
-        Files.move(sstableTmpPath, sstablePath, StandardCopyOption.ATOMIC_MOVE);
+        return new Written(tables, createdValueLogFiles, valueLogFiles, size);
     }
 
     private static long getSize(Entry<MemorySegment> entry) {
@@ -142,122 +161,396 @@ class Storage implements Closeable {
     }
 
     public static long getSizeOnDisk(Entry<MemorySegment> entry) {
-        return getSize(entry) + INDEX_RECORD_SIZE;
-    }
-
-    private static long writeRecord(MemorySegment nextSSTable, long offset, MemorySegment record) {
-        if (record == null) {
-            MemoryAccess.setLongAtOffset(nextSSTable, offset, -1);
-            return Long.BYTES;
-        }
-        long recordSize = record.byteSize();
-        MemoryAccess.setLongAtOffset(nextSSTable, offset, recordSize);
-        nextSSTable.asSlice(offset + Long.BYTES, recordSize).copyFrom(record);
-        return Long.BYTES + recordSize;
+        return getSize(entry);
     }
 
+    // every file is mapped in its own scope, so a mapping can be shared by several storage versions
     @SuppressWarnings("DuplicateThrows")
-    private static MemorySegment mapForRead(ResourceScope scope, Path file) throws NoSuchFileException, IOException {
+    static MemorySegment mapForRead(Path file) throws NoSuchFileException, IOException {
         long size = Files.size(file);
+        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
 
         return MemorySegment.mapFile(file, 0, size, FileChannel.MapMode.READ_ONLY, scope);
     }
 
-    public static void compact(Config config, Data data) throws IOException {
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        save(data, compactedFile);
-        finishCompact(config, compactedFile);
+    static void unmap(MemorySegment segment) {
+        ResourceScope scope = segment.scope();
+        while (scope.isAlive()) {
+            try {
+                scope.close();
+                return;
+            } catch (IllegalStateException ignored) {
+            }
+        }
+    }
+
+    // merges the inputs into tables of outputLevel, see CompactionPicker
+    // the key space is split into ranges by keys sampled from the block indexes,
+    // the ranges are merged in parallel and their outputs are committed together.
+    // Tombstones are dropped unless a table older than the output may hold the deleted key.
+    public static Change compact(
+            Config config,
+            Manifest manifest,
+            Storage storage,
+            List<SSTable> inputs,
+            int outputLevel,
+            long maxTableSize,
+            RateLimiter rateLimiter) throws IOException {
+        List<SSTable> sortedInputs = new ArrayList<>(inputs);
+        sortedInputs.sort(Comparator.comparing(SSTable::table, Manifest.Table.OLDER_FIRST));
+        List<SSTable> remaining = new ArrayList<>(storage.sstables);
+        remaining.removeAll(inputs);
+        List<SSTable> older = olderThanOutput(remaining, sortedInputs, outputLevel);
+
+        long inputRecords = 0;
+        long inputBytes = 0;
+        for (SSTable input : inputs) {
+            inputRecords += input.recordsCount();
+            inputBytes += input.byteSize();
+        }
+        // every range is written into tables of its own, so a range is not made smaller than a table
+        int rangesCount = (int) Math.min(COMPACTION_POOL.getParallelism(), Math.max(1, inputBytes / maxTableSize));
+        List<MemorySegment> splitKeys = splitKeys(sortedInputs, rangesCount);
+        long rangeBytes = inputBytes / (splitKeys.size() + 1);
+        long expectedEntriesPerTable = (long) Math.min(
+                inputRecords,
+                (double) inputRecords * Math.min(maxTableSize, rangeBytes) / Math.max(inputBytes, 1) + 1
+        );
+        // values of the garbage files are moved out by every compaction reading them,
+        // a file is deleted once no table refers to it
+        Set<Long> relocatedValueLogFiles = storage.valueLogGarbage(config, inputs);
+
+        List<Callable<Written>> rangeCompactions = new ArrayList<>(splitKeys.size() + 1);
+        for (int i = 0; i <= splitKeys.size(); i++) {
+            MemorySegment from = i == 0 ? VERY_FIRST_KEY : splitKeys.get(i - 1);
+            MemorySegment to = i == splitKeys.size() ? null : splitKeys.get(i);
+            List<SSTable> rangeOlder = overlapping(older, from, to);
+            rangeCompactions.add(() -> save(
+                    config,
+                    manifest,
+                    () -> purgeTombstones(
+                            MergeIterator.of(storage.iterate(sortedInputs, from, to), EntryKeyComparator.INSTANCE),
+                            rangeOlder
+                    ),
+                    expectedEntriesPerTable,
+                    maxTableSize,
+                    relocatedValueLogFiles,
+                    rateLimiter
+            ));
+        }
+        Written written = saveInParallel(config, rangeCompactions);
+
+        Set<Long> unreferencedValueLogFiles = valueLogFiles(inputs);
+        unreferencedValueLogFiles.removeAll(written.valueLogFiles());
+        unreferencedValueLogFiles.removeAll(valueLogFiles(remaining));
+        List<Long> compactedTables = new ArrayList<>(inputs.size());
+        for (SSTable input : inputs) {
+            compactedTables.add(input.id());
+        }
+        List<Manifest.Table> addedTables = manifest.replaceTables(
+                compactedTables,
+                written.tables(),
+                outputLevel,
+                written.createdValueLogFiles(),
+                unreferencedValueLogFiles
+        );
+
+        // files are not visible anymore and are deleted once the last reader releases them,
+        // leftovers after a crash are removed when the manifest is opened
+        for (SSTable input : inputs) {
+            input.file().markObsolete();
+        }
+        storage.valueLog.markObsolete(unreferencedValueLogFiles);
+        return new Change(
+                compactedTables,
+                addedTables,
+                written.size(),
+                written.createdValueLogFiles(),
+                unreferencedValueLogFiles
+        );
     }
 
-    private static void finishCompact(Config config, Path compactedFile) throws IOException {
-        for (int i = 0; ; i++) {
-            Path nextFile = config.basePath().resolve(FILE_NAME + i + FILE_EXT);
-            if (!Files.deleteIfExists(nextFile)) {
-                break;
+    // remaining tables placed before the output in Manifest.Table.OLDER_FIRST order,
+    // the output takes the newest sequence of the inputs
+    private static List<SSTable> olderThanOutput(List<SSTable> remaining, List<SSTable> sortedInputs, int outputLevel) {
+        if (sortedInputs.isEmpty()) {
+            return remaining;
+        }
+        long sequence = 0;
+        for (SSTable input : sortedInputs) {
+            sequence = Math.max(sequence, input.table().sequence());
+        }
+        Manifest.Table output = new Manifest.Table(-1, sequence, outputLevel);
+        List<SSTable> older = new ArrayList<>();
+        for (SSTable table : remaining) {
+            // equal position is possible for non-overlapping tables only, it is checked anyway
+            if (Manifest.Table.OLDER_FIRST.compare(table.table(), output) <= 0) {
+                older.add(table);
             }
         }
+        return older;
+    }
 
-        Files.move(compactedFile, config.basePath().resolve(FILE_NAME + 0 + FILE_EXT), StandardCopyOption.ATOMIC_MOVE);
+    private static List<SSTable> overlapping(List<SSTable> tables, MemorySegment from, MemorySegment to) {
+        List<SSTable> result = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (table.overlaps(from, to)) {
+                result.add(table);
+            }
+        }
+        return result;
     }
 
-    // supposed to have fresh files first
+    // a tombstone is needed only to hide the key in older tables
+    private static Iterator<Entry<MemorySegment>> purgeTombstones(
+            Iterator<Entry<MemorySegment>> iterator,
+            List<SSTable> older) {
+        return new Iterator<>() {
+            private Entry<MemorySegment> next = skipPurged();
+
+            private Entry<MemorySegment> skipPurged() {
+                while (iterator.hasNext()) {
+                    Entry<MemorySegment> entry = iterator.next();
+                    if (!entry.isTombstone() || mayBeInOlder(entry.key())) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
 
-    private final ResourceScope scope;
-    private final ArrayList<MemorySegment> sstables;
-    private final boolean hasTombstones;
+            private boolean mayBeInOlder(MemorySegment key) {
+                for (SSTable table : older) {
+                    if (table.mayContain(key)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
 
-    private Storage(ResourceScope scope, ArrayList<MemorySegment> sstables, boolean hasTombstones) {
-        this.scope = scope;
-        this.sstables = sstables;
-        this.hasTombstones = hasTombstones;
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                Entry<MemorySegment> entry = next;
+                next = skipPurged();
+                return entry;
+            }
+        };
     }
 
-    private long greaterOrEqualEntryIndex(MemorySegment sstable, MemorySegment key) {
-        long index = entryIndex(sstable, key);
-        if (index < 0) {
-            return ~index;
+    // keys splitting the inputs into rangesCount ranges of about the same size
+    static List<MemorySegment> splitKeys(List<SSTable> inputs, int rangesCount) {
+        if (rangesCount <= 1) {
+            return List.of();
+        }
+        List<MemorySegment> samples = new ArrayList<>();
+        for (SSTable input : inputs) {
+            samples.addAll(input.blockFirstKeys());
+        }
+        samples.sort(MemorySegmentComparator.INSTANCE);
+
+        // no empty ranges: every split key is greater than the previous one and than the smallest key
+        List<MemorySegment> splitKeys = new ArrayList<>(rangesCount - 1);
+        MemorySegment previous = samples.isEmpty() ? null : samples.get(0);
+        for (int i = 1; i < rangesCount && previous != null; i++) {
+            MemorySegment key = samples.get((int) ((long) samples.size() * i / rangesCount));
+            if (MemorySegmentComparator.INSTANCE.compare(previous, key) < 0) {
+                splitKeys.add(key);
+                previous = key;
+            }
         }
-        return index;
+        return splitKeys;
     }
 
-    // file structure:
-    // (fileVersion)(entryCount)((entryPosition)...)|((keySize/key/valueSize/value)...)
-    private long entryIndex(MemorySegment sstable, MemorySegment key) {
-        long fileVersion = MemoryAccess.getLongAtOffset(sstable, 0);
-        if (fileVersion != 0) {
-            throw new IllegalStateException("Unknown file version: " + fileVersion);
+    // outputs of all the ranges are kept (in the range order) or removed together
+    private static Written saveInParallel(Config config, List<Callable<Written>> rangeCompactions)
+            throws IOException {
+        if (rangeCompactions.size() == 1) {
+            try {
+                return rangeCompactions.get(0).call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
         }
-        long recordsCount = MemoryAccess.getLongAtOffset(sstable, 8);
-        if (key == null) {
-            // fixme
-            return recordsCount;
+
+        List<Future<Written>> futures = COMPACTION_POOL.invokeAll(rangeCompactions);
+        List<Written> ranges = new ArrayList<>(futures.size());
+        Throwable failure = null;
+        for (Future<Written> future : futures) {
+            try {
+                ranges.add(future.get());
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            for (Written range : ranges) {
+                for (long tableId : range.tables()) {
+                    Files.deleteIfExists(tableFile(config, tableId));
+                }
+                ValueLog.delete(config, range.createdValueLogFiles());
+            }
+            if (failure instanceof IOException e) {
+                throw e;
+            }
+            if (failure instanceof RuntimeException e) {
+                throw e;
+            }
+            throw new IllegalStateException(failure);
         }
 
-        long left = 0;
-        long right = recordsCount - 1;
+        List<Long> tables = new ArrayList<>();
+        List<Long> createdValueLogFiles = new ArrayList<>();
+        Set<Long> valueLogFiles = new HashSet<>();
+        long size = 0;
+        for (Written range : ranges) {
+            tables.addAll(range.tables());
+            createdValueLogFiles.addAll(range.createdValueLogFiles());
+            valueLogFiles.addAll(range.valueLogFiles());
+            size += range.size();
+        }
+        return new Written(tables, createdValueLogFiles, valueLogFiles, size);
+    }
 
-        while (left <= right) {
-            long mid = (left + right) >>> 1;
+    private record Written(List<Long> tables, List<Long> createdValueLogFiles, Set<Long> valueLogFiles, long size) {
+        // flush creates at most one value log file
+        long createdValueLogFile() {
+            return createdValueLogFiles.isEmpty() ? -1 : createdValueLogFiles.get(0);
+        }
+    }
+
+    // a change committed to the manifest: addedTables replace removedTables
+    record Change(
+            List<Long> removedTables,
+            List<Manifest.Table> addedTables,
+            long size,
+            List<Long> addedValueLogFiles,
+            Set<Long> removedValueLogFiles) {
+    }
 
-            long keyPos = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + mid * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, keyPos);
+    // copy on write: mappings of the kept files are reused, only the new tables and value log files are mapped
+    // supposed to be called by an owner of a reference to this version
+    Storage apply(Config config, Change change) throws IOException {
+        ValueLog newValueLog = valueLog.withFiles(config, change.addedValueLogFiles(), change.removedValueLogFiles());
+        ArrayList<SSTable> newSSTables = new ArrayList<>(sstables.size() + change.addedTables().size());
+        try {
+            for (Manifest.Table table : change.addedTables()) {
+                newSSTables.add(SSTable.open(table, MappedFile.map(tableFile(config, table.id())), newValueLog));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (SSTable sstable : newSSTables) {
+                sstable.file().release();
+            }
+            newValueLog.release();
+            throw e;
+        }
 
-            MemorySegment keyForCheck = sstable.asSlice(keyPos + Long.BYTES, keySize);
-            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
-            if (comparedResult > 0) {
-                left = mid + 1;
-            } else if (comparedResult < 0) {
-                right = mid - 1;
-            } else {
-                return mid;
+        List<SSTable> addedSSTables = List.copyOf(newSSTables);
+        for (SSTable sstable : sstables) {
+            if (!change.removedTables().contains(sstable.id())) {
+                sstable.file().acquire();
+                newSSTables.add(sstable);
             }
         }
+        newSSTables.sort(Comparator.comparing(SSTable::table, Manifest.Table.OLDER_FIRST));
+
+        // references of the compacted tables are gone with the entries the compaction dropped
+        Map<Long, Long> newValueLogLiveBytes = new HashMap<>(valueLogLiveBytes);
+        for (SSTable sstable : sstables) {
+            if (change.removedTables().contains(sstable.id())) {
+                sstable.valueLogRefs().forEach(
+                        (fileId, bytes) -> newValueLogLiveBytes.merge(fileId, -bytes, Long::sum)
+                );
+            }
+        }
+        for (SSTable sstable : addedSSTables) {
+            sstable.valueLogRefs().forEach((fileId, bytes) -> newValueLogLiveBytes.merge(fileId, bytes, Long::sum));
+        }
+        newValueLogLiveBytes.keySet().removeAll(change.removedValueLogFiles());
+        newValueLogLiveBytes.values().removeIf(bytes -> bytes <= 0);
+        return new Storage(newSSTables, newValueLog, newValueLogLiveBytes);
+    }
+
+    // older first in Manifest.Table.OLDER_FIRST order, lookups walk it from the end
+    private final ArrayList<SSTable> sstables;
+    private final ValueLog valueLog;
+    // bytes referenced by the tables in each value log file
+    private final Map<Long, Long> valueLogLiveBytes;
+    // the dao state owns the first reference, readers pin the version with acquire()
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean closed;
 
-        return ~left;
+    private Storage(ArrayList<SSTable> sstables, ValueLog valueLog, Map<Long, Long> valueLogLiveBytes) {
+        this.sstables = sstables;
+        this.valueLog = valueLog;
+        this.valueLogLiveBytes = valueLogLiveBytes;
     }
 
-    private Entry<MemorySegment> entryAt(MemorySegment sstable, long keyIndex) {
-        try {
-            long offset = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + keyIndex * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, offset);
-            long valueOffset = offset + Long.BYTES + keySize;
-            long valueSize = MemoryAccess.getLongAtOffset(sstable, valueOffset);
+    // supposed to be called by an owner of another reference only, so the version can't be released meanwhile
+    public void acquire() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Storage is already released");
+        }
+    }
+
+    // the files are released with the last reference to the version
+    public void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        for (SSTable sstable : sstables) {
+            sstable.file().release();
+        }
+        valueLog.release();
+    }
+
+    // runs the release when the holder becomes unreachable, unless it is cleaned explicitly earlier
+    public static Cleaner.Cleanable releaseWhenUnreachable(Object holder, Runnable release) {
+        return CLEANER.register(holder, release);
+    }
+
+    // entries returned from an acquired version must stay valid after it is released,
+    // so values backed by mapped files and memtable entries backed by the arena are copied to the heap
+    public static Entry<MemorySegment> detach(Entry<MemorySegment> entry) {
+        MemorySegment value = entry.value();
+        if (entry.key().isNative()) {
             return new BaseEntry<>(
-                    sstable.asSlice(offset + Long.BYTES, keySize),
-                    valueSize == -1 ? null : sstable.asSlice(valueOffset + Long.BYTES, valueSize)
+                    MemorySegment.ofArray(entry.key().toByteArray()),
+                    value == null ? null : MemorySegment.ofArray(value.toByteArray())
             );
-        } catch (IllegalStateException e) {
-            throw checkForClose(e);
         }
+        if (entry instanceof ValueLogEntry || value != null && value.isMapped()) {
+            return new BaseEntry<>(entry.key(), MemorySegment.ofArray(value.toByteArray()));
+        }
+        return entry;
+    }
+
+    // the other way to keep entries valid, without copying: an entry backed by mapped files or by the arena
+    // references the pin, an object registered with releaseWhenUnreachable, so the owner outlives every such entry
+    public static Entry<MemorySegment> pin(Entry<MemorySegment> entry, Object pin) {
+        if (entry instanceof ValueLogEntry
+                || entry.key().isNative()
+                || entry.value() != null && entry.value().isMapped()) {
+            return new PinnedEntry(entry, pin);
+        }
+        return entry;
     }
 
+    // the entry is detached from the version, see detach()
     public Entry<MemorySegment> get(MemorySegment key) {
         try {
             for (int i = sstables.size() - 1; i >= 0; i--) {
-                MemorySegment sstable = sstables.get(i);
-                long keyFromPos = entryIndex(sstable, key);
-                if (keyFromPos >= 0) {
-                    return entryAt(sstable, keyFromPos);
+                Entry<MemorySegment> entry = sstables.get(i).get(key);
+                if (entry != null) {
+                    return detach(entry);
                 }
             }
             return null;
@@ -266,34 +559,49 @@ class Storage implements Closeable {
         }
     }
 
-    private Iterator<Entry<MemorySegment>> iterate(MemorySegment sstable, MemorySegment keyFrom, MemorySegment keyTo) {
-        long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
-        long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+    private Iterator<Entry<MemorySegment>> iterate(SSTable sstable, MemorySegment keyFrom, MemorySegment keyTo) {
+        Iterator<Entry<MemorySegment>> delegate = sstable.iterate(keyFrom, keyTo);
 
         return new Iterator<>() {
-            long pos = keyFromPos;
-
             @Override
             public boolean hasNext() {
-                return pos < keyToPos;
+                return delegate.hasNext();
             }
 
             @Override
             public Entry<MemorySegment> next() {
-                Entry<MemorySegment> entry = entryAt(sstable, pos);
-                pos++;
-                return entry;
+                try {
+                    return delegate.next();
+                } catch (IllegalStateException e) {
+                    throw checkForClose(e);
+                }
             }
         };
     }
 
+    // iterators of the tables in the given order, the ones not overlapping the range are skipped
+    private List<Iterator<Entry<MemorySegment>>> iterate(
+            List<SSTable> tables,
+            MemorySegment keyFrom,
+            MemorySegment keyTo) {
+        List<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(tables.size());
+        for (SSTable table : tables) {
+            if (table.overlaps(keyFrom, keyTo)) {
+                iterators.add(iterate(table, keyFrom, keyTo));
+            }
+        }
+        return iterators;
+    }
+
     // last is newer
     // it is ok to mutate list after
     public ArrayList<Iterator<Entry<MemorySegment>>> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
         try {
             ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(sstables.size());
-            for (MemorySegment sstable : sstables) {
-                iterators.add(iterate(sstable, keyFrom, keyTo));
+            for (SSTable sstable : sstables) {
+                if (sstable.overlaps(keyFrom, keyTo)) {
+                    iterators.add(iterate(sstable, keyFrom, keyTo));
+                }
             }
             return iterators;
         } catch (IllegalStateException e) {
@@ -301,6 +609,73 @@ class Storage implements Closeable {
         }
     }
 
+    // see EntryCursor, the newer table wins for equal keys
+    public EntryCursor cursor(MemorySegment keyFrom, MemorySegment keyTo) {
+        try {
+            List<EntryCursor> cursors = new ArrayList<>(sstables.size());
+            for (SSTable sstable : sstables) {
+                if (sstable.overlaps(keyFrom, keyTo)) {
+                    cursors.add(sstable.cursor(keyFrom, keyTo));
+                }
+            }
+            return new ClosedCheckingCursor(MergeCursor.of(cursors));
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    private final class ClosedCheckingCursor implements EntryCursor {
+        private final EntryCursor delegate;
+
+        ClosedCheckingCursor(EntryCursor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean advance() {
+            try {
+                return delegate.advance();
+            } catch (IllegalStateException e) {
+                throw checkForClose(e);
+            }
+        }
+
+        @Override
+        public MemorySegment keyData() {
+            return delegate.keyData();
+        }
+
+        @Override
+        public long keyOffset() {
+            return delegate.keyOffset();
+        }
+
+        @Override
+        public long keySize() {
+            return delegate.keySize();
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return delegate.isTombstone();
+        }
+
+        @Override
+        public MemorySegment valueData() {
+            return delegate.valueData();
+        }
+
+        @Override
+        public long valueOffset() {
+            return delegate.valueOffset();
+        }
+
+        @Override
+        public long valueSize() {
+            return delegate.valueSize();
+        }
+    }
+
     private RuntimeException checkForClose(IllegalStateException e) {
         if (isClosed()) {
             throw new StorageClosedException(e);
@@ -309,33 +684,75 @@ class Storage implements Closeable {
         }
     }
 
+    // readers fail from now on, files are unmapped once the owners release the version
     @Override
     public void close() throws IOException {
-        while (scope.isAlive()) {
-            try {
-                scope.close();
-                return;
-            } catch (IllegalStateException ignored) {
-            }
+        closed = true;
+    }
+
+    // older first
+    public List<SSTable> sstables() {
+        return Collections.unmodifiableList(sstables);
+    }
+
+    public long recordsCount() {
+        long count = 0;
+        for (SSTable sstable : sstables) {
+            count += sstable.recordsCount();
+        }
+        return count;
+    }
+
+    // value log files referenced by any of the tables
+    private static Set<Long> valueLogFiles(List<SSTable> sstables) {
+        Set<Long> files = new HashSet<>();
+        for (SSTable sstable : sstables) {
+            files.addAll(sstable.valueLogRefs().keySet());
         }
+        return files;
     }
 
-    public void maybeClose() {
+    private static Map<Long, Long> valueLogLiveBytes(List<SSTable> sstables) {
+        Map<Long, Long> liveBytes = new HashMap<>();
+        for (SSTable sstable : sstables) {
+            sstable.valueLogRefs().forEach((fileId, bytes) -> liveBytes.merge(fileId, bytes, Long::sum));
+        }
+        return liveBytes;
+    }
 
+    // value log files referenced by the tables where overwritten and deleted values take too much space,
+    // files with less live bytes than a flushed table are merged the same way, so relocated values don't end up
+    // in a growing number of small files.
+    // Bytes referenced by all tables are an upper bound of live bytes: the same key may be referenced several times,
+    // they go down as compactions drop the overwritten and deleted entries.
+    private Set<Long> valueLogGarbage(Config config, List<SSTable> tables) {
+        Set<Long> garbage = new HashSet<>();
+        for (long fileId : valueLogFiles(tables)) {
+            long liveBytes = valueLogLiveBytes.getOrDefault(fileId, 0L);
+            long fullSize = Math.max(valueLog.fileSize(fileId), config.flushThresholdBytes());
+            if (liveBytes < fullSize * ValueLog.GC_LIVE_RATIO) {
+                garbage.add(fileId);
+            }
+        }
+        return garbage;
     }
 
     public boolean isClosed() {
-        return !scope.isAlive();
+        return closed;
     }
 
+    // a single table or non-overlapping tables of a single level, without tombstones
     public boolean isCompacted() {
         if (sstables.isEmpty()) {
             return true;
         }
-        if (sstables.size() > 1) {
-            return false;
+        int level = sstables.get(0).level();
+        for (SSTable sstable : sstables) {
+            if (sstable.tombstonesCount() > 0 || sstable.level() != level) {
+                return false;
+            }
         }
-        return !hasTombstones;
+        return level > 0 || sstables.size() == 1;
     }
 
     public interface Data {
@@ -1,4 +0,0 @@
-package ru.mail.polis.artyomdrozdov;
-
-public class TooManyFlushesInBgException extends RuntimeException {
-}
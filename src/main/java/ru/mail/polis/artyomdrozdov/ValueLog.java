@@ -0,0 +1,187 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Append-only storage for large values (key-value separation), sstables keep only pointers to it.
+// file structure:
+// ((keySize/key/valueSize/value)...)
+// key is kept for diagnostics and recovery, pointers refer to the value bytes.
+final class ValueLog {
+
+    private static final String FILE_NAME = "vlog";
+    private static final String FILE_EXT = ".dat";
+
+    // value log files with a smaller share of referenced bytes are rewritten by compaction
+    static final double GC_LIVE_RATIO = 0.5;
+
+    private static final ValueLog EMPTY = new ValueLog(Map.of());
+
+    // mappings are shared between versions, every version owns a reference to each of its files
+    private final Map<Long, MappedFile> files;
+
+    private ValueLog(Map<Long, MappedFile> files) {
+        this.files = files;
+    }
+
+    static ValueLog load(Config config, Collection<Long> fileIds) throws IOException {
+        return EMPTY.withFiles(config, fileIds, Set.of());
+    }
+
+    // copy on write: only the added files are mapped
+    ValueLog withFiles(Config config, Collection<Long> addedFileIds, Collection<Long> removedFileIds)
+            throws IOException {
+        Map<Long, MappedFile> newFiles = new HashMap<>(files);
+        newFiles.keySet().removeAll(removedFileIds);
+        for (MappedFile file : newFiles.values()) {
+            file.acquire();
+        }
+        try {
+            for (long fileId : addedFileIds) {
+                newFiles.put(fileId, MappedFile.map(file(config, fileId)));
+            }
+        } catch (IOException | RuntimeException e) {
+            new ValueLog(newFiles).release();
+            throw e;
+        }
+        return new ValueLog(newFiles);
+    }
+
+    static Path file(Config config, long fileId) {
+        return config.basePath().resolve(FILE_NAME + fileId + FILE_EXT);
+    }
+
+    static void delete(Config config, Collection<Long> fileIds) throws IOException {
+        for (long fileId : fileIds) {
+            Files.deleteIfExists(file(config, fileId));
+        }
+    }
+
+    MemorySegment read(Pointer pointer) {
+        return segment(pointer.fileId()).asSlice(pointer.offset(), pointer.length());
+    }
+
+    // the whole mapped file, pointers are offsets in it
+    MemorySegment segment(long fileId) {
+        MappedFile file = files.get(fileId);
+        if (file == null) {
+            throw new IllegalStateException("Unknown value log file: " + fileId);
+        }
+        return file.segment();
+    }
+
+    void release() {
+        for (MappedFile file : files.values()) {
+            file.release();
+        }
+    }
+
+    // the files are deleted once no version refers to them
+    void markObsolete(Collection<Long> fileIds) {
+        for (long fileId : fileIds) {
+            MappedFile file = files.get(fileId);
+            if (file != null) {
+                file.markObsolete();
+            }
+        }
+    }
+
+    long fileSize(long fileId) {
+        MappedFile file = files.get(fileId);
+        return file == null ? 0 : file.segment().byteSize();
+    }
+
+    record Pointer(long fileId, long offset, long length) {
+        static final int SIZE = Long.BYTES * 3;
+
+        static Pointer read(MemorySegment segment, long offset) {
+            return new Pointer(
+                    MemoryAccess.getLongAtOffset(segment, offset),
+                    MemoryAccess.getLongAtOffset(segment, offset + Long.BYTES),
+                    MemoryAccess.getLongAtOffset(segment, offset + Long.BYTES * 2)
+            );
+        }
+
+        void write(MemorySegment segment, long offset) {
+            MemoryAccess.setLongAtOffset(segment, offset, fileId);
+            MemoryAccess.setLongAtOffset(segment, offset + Long.BYTES, this.offset);
+            MemoryAccess.setLongAtOffset(segment, offset + Long.BYTES * 2, length);
+        }
+    }
+
+    // Appends values to a fresh value log file, created on the first append
+    static final class Writer implements Closeable {
+        private final Config config;
+        private final Manifest manifest;
+        private final RateLimiter rateLimiter;
+        private final byte[] header = new byte[Long.BYTES];
+        private FileChannel channel;
+        private long fileId = -1;
+        private long position;
+
+        Writer(Config config, Manifest manifest, RateLimiter rateLimiter) {
+            this.config = config;
+            this.manifest = manifest;
+            this.rateLimiter = rateLimiter;
+        }
+
+        // -1 if nothing was appended
+        long fileId() {
+            return fileId;
+        }
+
+        Pointer append(MemorySegment key, MemorySegment value) throws IOException {
+            if (channel == null) {
+                open();
+            }
+            writeSized(key);
+            Pointer pointer = new Pointer(fileId, position + Long.BYTES, value.byteSize());
+            writeSized(value);
+            return pointer;
+        }
+
+        private void open() throws IOException {
+            long id = manifest.nextFileId();
+            channel = FileChannel.open(file(config, id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            fileId = id;
+        }
+
+        private void writeSized(MemorySegment data) throws IOException {
+            MemoryAccess.setLongAtOffset(MemorySegment.ofArray(header), 0, data.byteSize());
+            ByteBuffer[] buffers = {ByteBuffer.wrap(header), ByteBuffer.wrap(data.toByteArray())};
+            long size = header.length + data.byteSize();
+            rateLimiter.acquire(size);
+            long written = 0;
+            while (written < size) {
+                written += channel.write(buffers);
+            }
+            position += size;
+        }
+
+        void force() throws IOException {
+            if (channel != null) {
+                channel.force(true);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
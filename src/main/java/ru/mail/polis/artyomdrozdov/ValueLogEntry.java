@@ -0,0 +1,42 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+// Entry with a value kept in the value log, the value is resolved on demand
+final class ValueLogEntry implements Entry<MemorySegment> {
+
+    private final MemorySegment key;
+    private final ValueLog.Pointer pointer;
+    private final ValueLog valueLog;
+
+    ValueLogEntry(MemorySegment key, ValueLog.Pointer pointer, ValueLog valueLog) {
+        this.key = key;
+        this.pointer = pointer;
+        this.valueLog = valueLog;
+    }
+
+    ValueLog.Pointer pointer() {
+        return pointer;
+    }
+
+    @Override
+    public MemorySegment key() {
+        return key;
+    }
+
+    @Override
+    public MemorySegment value() {
+        return valueLog.read(pointer);
+    }
+
+    @Override
+    public boolean isTombstone() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + key + ":" + pointer + "}";
+    }
+}
@@ -0,0 +1,353 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+// Log of memtable writes, so they survive a crash before the memtable is flushed.
+// Every memtable has a segment of its own, the segment is deleted once the table of the memtable is committed.
+// Segments are numbered in the order they are created, which is the order to replay them in.
+// Concurrent writers append records to a shared buffer and a single thread writes and forces it for all of them
+// (group commit): with SYNC durability the writer finding no force in progress writes the buffer
+// while the next batch is collected by the others, with ASYNC durability a background thread forces it
+// every walSyncIntervalMillis.
+// file structure:
+// (payloadSize/checksum/payload)...
+// payload: (keySize/valueSize/key/value)..., valueSize is -1 for a tombstone
+// Replay stops at the first torn or corrupted record.
+final class WriteAheadLog {
+
+    private static final String FILE_NAME = "wal";
+    private static final String FILE_EXT = ".log";
+    private static final int RECORD_HEADER_SIZE = Long.BYTES * 2;
+    private static final int ENTRY_HEADER_SIZE = Long.BYTES * 2;
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    private final Config config;
+    // segments left by the previous run, older first
+    private final List<Long> existingSegments;
+    private final AtomicLong nextSegmentId;
+
+    private WriteAheadLog(Config config, List<Long> existingSegments) {
+        this.config = config;
+        this.existingSegments = existingSegments;
+        this.nextSegmentId = new AtomicLong(existingSegments.isEmpty()
+                ? 0
+                : existingSegments.get(existingSegments.size() - 1) + 1);
+    }
+
+    static WriteAheadLog open(Config config) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(config.basePath(), FILE_NAME + "*" + FILE_EXT)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String id = name.substring(FILE_NAME.length(), name.length() - FILE_EXT.length());
+                if (!id.isEmpty() && id.chars().allMatch(Character::isDigit)) {
+                    segments.add(Long.parseLong(id));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return new WriteAheadLog(config, segments);
+    }
+
+    List<Long> existingSegments() {
+        return Collections.unmodifiableList(existingSegments);
+    }
+
+    Segment newSegment() throws IOException {
+        long id = nextSegmentId.getAndIncrement();
+        return new Segment(id, FileChannel.open(file(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    }
+
+    // maps a segment of the previous run and finds its valid part
+    Replay openReplay(long segmentId) throws IOException {
+        MemorySegment log = Storage.mapForRead(file(segmentId));
+        try {
+            return new Replay(segmentId, log, validSize(log));
+        } catch (RuntimeException e) {
+            Storage.unmap(log);
+            throw e;
+        }
+    }
+
+    // a segment of the previous run taken over by the memtable its writes are replayed into, never appended to
+    Segment reopen(long segmentId) throws IOException {
+        return new Segment(segmentId, FileChannel.open(file(segmentId), StandardOpenOption.WRITE));
+    }
+
+    private static long validSize(MemorySegment log) {
+        byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        long size = log.byteSize();
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            long payloadSize = MemoryAccess.getLongAtOffset(log, offset);
+            long checksum = MemoryAccess.getLongAtOffset(log, offset + Long.BYTES);
+            if (payloadSize <= 0 || offset + RECORD_HEADER_SIZE + payloadSize > size) {
+                break;
+            }
+            if (checksum(log.asSlice(offset + RECORD_HEADER_SIZE, payloadSize), chunk) != checksum) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + payloadSize;
+        }
+        return offset;
+    }
+
+    void delete(long segmentId) throws IOException {
+        Files.deleteIfExists(file(segmentId));
+    }
+
+    private Path file(long segmentId) {
+        return config.basePath().resolve(FILE_NAME + segmentId + FILE_EXT);
+    }
+
+    private static long checksum(MemorySegment payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.asByteBuffer());
+        return crc.getValue();
+    }
+
+    // buffers of mapped segments are not accepted by CRC32, so the payload goes through a heap chunk
+    private static long checksum(MemorySegment payload, byte[] chunk) {
+        CRC32 crc = new CRC32();
+        MemorySegment chunkSegment = MemorySegment.ofArray(chunk);
+        for (long offset = 0; offset < payload.byteSize(); offset += chunk.length) {
+            int length = (int) Math.min(chunk.length, payload.byteSize() - offset);
+            chunkSegment.asSlice(0, length).copyFrom(payload.asSlice(offset, length));
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    // A mapped segment of the previous run, the part after a torn or corrupted record is dropped.
+    // Several threads can read the entries at once, each one parsing its own range of records.
+    static final class Replay implements Closeable {
+        final long id;
+        private final MemorySegment log;
+        private final long validSize;
+
+        private Replay(long id, MemorySegment log, long validSize) {
+            this.id = id;
+            this.log = log;
+            this.validSize = validSize;
+        }
+
+        long validSize() {
+            return validSize;
+        }
+
+        // offsets of record starts splitting the valid part into about equal ranges, the first one is 0
+        // and the last one is validSize, so there are fewer ranges than asked for if records are large
+        long[] split(int ranges) {
+            long[] bounds = new long[ranges + 1];
+            int count = 1;
+            long offset = 0;
+            while (offset < validSize) {
+                if (count < ranges && offset >= validSize / ranges * count && offset > bounds[count - 1]) {
+                    bounds[count++] = offset;
+                }
+                offset += RECORD_HEADER_SIZE + MemoryAccess.getLongAtOffset(log, offset);
+            }
+            bounds[count++] = validSize;
+            return Arrays.copyOf(bounds, count);
+        }
+
+        // passes the entries of the records starting within [from, to) in the order they were written,
+        // along with the log position after the record, which is what append() returned for it;
+        // the entries point to the mapped file, so they are not accessible after close()
+        void forEach(long from, long to, ObjLongConsumer<Entry<MemorySegment>> consumer) {
+            long offset = from;
+            while (offset < to) {
+                long payloadEnd = offset + RECORD_HEADER_SIZE + MemoryAccess.getLongAtOffset(log, offset);
+                long position = offset + RECORD_HEADER_SIZE;
+                while (position < payloadEnd) {
+                    long keySize = MemoryAccess.getLongAtOffset(log, position);
+                    long valueSize = MemoryAccess.getLongAtOffset(log, position + Long.BYTES);
+                    position += ENTRY_HEADER_SIZE;
+                    MemorySegment key = log.asSlice(position, keySize);
+                    position += keySize;
+                    MemorySegment value = null;
+                    if (valueSize != -1) {
+                        value = log.asSlice(position, valueSize);
+                        position += valueSize;
+                    }
+                    consumer.accept(new BaseEntry<>(key, value), payloadEnd);
+                }
+                offset = payloadEnd;
+            }
+        }
+
+        @Override
+        public void close() {
+            Storage.unmap(log);
+        }
+    }
+
+    static final class Segment implements Closeable {
+        private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+        final long id;
+        private final FileChannel channel;
+
+        // guarded by this
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private byte[] spare = new byte[INITIAL_BUFFER_SIZE];
+        private int bufferSize;
+        // positions in the log
+        private long appended;
+        private long durable;
+        private boolean syncing;
+        private boolean closed;
+        private IOException failure;
+
+        private Segment(long id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        // returns the log position to pass to sync()
+        long append(Entry<MemorySegment> entry) {
+            return append(List.of(entry));
+        }
+
+        // the entries make a single record, so they are replayed either all or none
+        synchronized long append(Collection<? extends Entry<MemorySegment>> entries) {
+            long payloadSize = 0;
+            for (Entry<MemorySegment> entry : entries) {
+                MemorySegment value = entry.value();
+                payloadSize += ENTRY_HEADER_SIZE + entry.key().byteSize() + (value == null ? 0 : value.byteSize());
+            }
+            int recordStart = reserve(RECORD_HEADER_SIZE + payloadSize);
+            MemorySegment record = MemorySegment.ofArray(buffer).asSlice(recordStart, RECORD_HEADER_SIZE + payloadSize);
+            MemorySegment payload = record.asSlice(RECORD_HEADER_SIZE, payloadSize);
+            long position = 0;
+            for (Entry<MemorySegment> entry : entries) {
+                MemorySegment key = entry.key();
+                MemorySegment value = entry.value();
+                MemoryAccess.setLongAtOffset(payload, position, key.byteSize());
+                MemoryAccess.setLongAtOffset(payload, position + Long.BYTES, value == null ? -1 : value.byteSize());
+                position += ENTRY_HEADER_SIZE;
+                payload.asSlice(position, key.byteSize()).copyFrom(key);
+                position += key.byteSize();
+                if (value != null) {
+                    payload.asSlice(position, value.byteSize()).copyFrom(value);
+                    position += value.byteSize();
+                }
+            }
+            MemoryAccess.setLongAtOffset(record, 0, payloadSize);
+            MemoryAccess.setLongAtOffset(record, Long.BYTES, checksum(payload));
+            appended += RECORD_HEADER_SIZE + payloadSize;
+            return appended;
+        }
+
+        private int reserve(long size) {
+            long required = bufferSize + size;
+            if (required > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too large write-ahead log record: " + size);
+            }
+            if (required > buffer.length) {
+                long newSize = Math.min(Math.max(required, buffer.length * 2L), Integer.MAX_VALUE - 8);
+                buffer = Arrays.copyOf(buffer, (int) newSize);
+            }
+            int start = bufferSize;
+            bufferSize += (int) size;
+            return start;
+        }
+
+        synchronized long appended() {
+            return appended;
+        }
+
+        // returns once the log is forced up to the position, the caller may be the one to force it
+        void sync(long position) throws IOException {
+            byte[] batch;
+            int batchSize;
+            long batchEnd;
+            synchronized (this) {
+                while (syncing && durable < position && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for write-ahead log sync");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("Write-ahead log is failed", failure);
+                }
+                // a closed segment belongs to a committed table
+                if (durable >= position || closed) {
+                    return;
+                }
+                syncing = true;
+                batch = buffer;
+                batchSize = bufferSize;
+                batchEnd = appended;
+                buffer = spare;
+                bufferSize = 0;
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer data = ByteBuffer.wrap(batch, 0, batchSize);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+                    spare = batch;
+                    if (error == null) {
+                        durable = batchEnd;
+                    } else {
+                        failure = error;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        // supposed to be called once the table of the memtable is committed, so there is nothing to force
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                while (syncing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for write-ahead log sync");
+                    }
+                }
+                closed = true;
+                notifyAll();
+            }
+            channel.close();
+        }
+    }
+}
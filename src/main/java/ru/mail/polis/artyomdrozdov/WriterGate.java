@@ -0,0 +1,89 @@
+package ru.mail.polis.artyomdrozdov;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Lets writers into a memtable without a shared lock word: a writer counts itself in a stripe of its thread
+// and then checks that the gate is still open, backing off if it is not.
+// Closing the gate and waiting for the stripes to drain is a grace period:
+// the writers which got in before are done, and nobody gets in after.
+// The waiter spins for a while, as writers leave fast, and then parks until a leaving writer wakes it up.
+final class WriterGate {
+
+    // a power of two
+    private static final int STRIPES = Math.min(
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1),
+            64
+    );
+    // counters of the stripes are a cache line apart
+    private static final int PADDING = 16;
+    private static final int SPINS = 128;
+    // bounds the wait of a second waiter, only the last one to register is woken up
+    private static final long PARK_NANOS = 1_000_000;
+
+    private final AtomicLongArray inFlight = new AtomicLongArray(STRIPES * PADDING);
+    private volatile boolean closed;
+    // set by awaitClosed() before it parks, it checks the counters again after, so a wakeup is not lost
+    private volatile Thread waiter;
+
+    // returns a ticket for exit(), or -1 if the gate is closed
+    int enter() {
+        int ticket = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+        inFlight.getAndIncrement(ticket);
+        // the counter is visible to close() before the check, so either the writer sees the gate closed
+        // or awaitClosed() sees the writer
+        if (closed) {
+            exit(ticket);
+            return -1;
+        }
+        return ticket;
+    }
+
+    void exit(int ticket) {
+        inFlight.getAndDecrement(ticket);
+        if (closed) {
+            wakeUpWaiter();
+        }
+    }
+
+    void close() {
+        closed = true;
+        wakeUpWaiter();
+    }
+
+    // waits until the gate is closed and the writers which got in have left
+    void awaitClosed() {
+        int spins = 0;
+        while (!isDrained()) {
+            if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+                continue;
+            }
+            waiter = Thread.currentThread();
+            if (!isDrained()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        waiter = null;
+    }
+
+    private boolean isDrained() {
+        if (!closed) {
+            return false;
+        }
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            if (inFlight.get(stripe * PADDING) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void wakeUpWaiter() {
+        Thread current = waiter;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+}
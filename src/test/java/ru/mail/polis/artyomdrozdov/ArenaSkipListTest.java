@@ -0,0 +1,226 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Entry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArenaSkipListTest {
+
+    // sequence of writes out of batches, seen by every snapshot
+    private static final long NO_BATCH = 0;
+    private static final int WRITERS = 4;
+    private static final int KEYS_PER_WRITER = 5_000;
+    // every writer overwrites these keys along with its own ones
+    private static final int SHARED_KEYS = 100;
+    private static final int ROUNDS = 2;
+
+    @Test
+    void concurrentInsertsAreSeenByConcurrentScans() throws Exception {
+        ArenaSkipList list = new ArenaSkipList(1024 * 1024);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                writers.add(thread(failure, () -> {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        for (int i = 0; i < KEYS_PER_WRITER; i++) {
+                            String key = key(i * WRITERS + writer);
+                            list.put(segment(key), segment(value(key, round)), NO_BATCH, 0);
+                            if (i % (KEYS_PER_WRITER / SHARED_KEYS) == 0) {
+                                String shared = sharedKey(i * SHARED_KEYS / KEYS_PER_WRITER);
+                                list.put(segment(shared), segment(value(shared, writer)), NO_BATCH, 0);
+                            }
+                        }
+                    }
+                }));
+            }
+
+            Thread reader = thread(failure, () -> {
+                start.await();
+                Set<String> seen = new HashSet<>();
+                while (writers.stream().anyMatch(Thread::isAlive)) {
+                    Set<String> scanned = scan(list);
+                    // nodes are never removed
+                    assertTrue(scanned.containsAll(seen), "a key disappeared");
+                    seen = scanned;
+                }
+            });
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            reader.join();
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+
+            assertEquals(WRITERS * KEYS_PER_WRITER + SHARED_KEYS, list.size());
+            assertEquals(WRITERS * KEYS_PER_WRITER + SHARED_KEYS, scan(list).size());
+            for (int i = 0; i < WRITERS * KEYS_PER_WRITER; i++) {
+                String key = key(i);
+                Entry<MemorySegment> entry = list.get(segment(key), Long.MAX_VALUE);
+                assertNotNull(entry, key);
+                assertEquals(value(key, ROUNDS - 1), string(entry.value()));
+            }
+        } finally {
+            list.close();
+        }
+    }
+
+    @Test
+    void overwritesTombstonesAndRanges() {
+        ArenaSkipList list = new ArenaSkipList(0);
+        try {
+            list.put(segment("b"), segment("1"), NO_BATCH, 0);
+            list.put(segment("a"), segment("1"), NO_BATCH, 0);
+            list.put(segment("c"), segment("1"), NO_BATCH, 0);
+            list.put(segment("b"), segment("2"), NO_BATCH, 0);
+            list.put(segment("c"), null, NO_BATCH, 0);
+
+            assertEquals(3, list.size());
+            assertEquals("2", string(list.get(segment("b"), Long.MAX_VALUE).value()));
+            assertNull(list.get(segment("c"), Long.MAX_VALUE).value());
+            assertNull(list.get(segment("bb"), Long.MAX_VALUE));
+
+            Iterator<Entry<MemorySegment>> iterator = list.get(segment("aa"), segment("c"), Long.MAX_VALUE);
+            assertEquals("b", string(iterator.next().key()));
+            assertFalse(iterator.hasNext());
+        } finally {
+            list.close();
+        }
+    }
+
+    @Test
+    void writesOfLaterSequencesAreNotSeenBySnapshot() {
+        ArenaSkipList list = new ArenaSkipList(0);
+        try {
+            list.put(segment("a"), segment("1"), NO_BATCH, 0);
+            list.put(segment("a"), segment("2"), 2, 0);
+            list.put(segment("b"), null, 2, 0);
+
+            assertEquals("1", string(list.get(segment("a"), 1).value()));
+            assertNull(list.get(segment("b"), 1));
+            assertEquals("2", string(list.get(segment("a"), 2).value()));
+            assertNull(list.get(segment("b"), 2).value());
+
+            Iterator<Entry<MemorySegment>> iterator = list.get(null, null, 1);
+            assertEquals("a", string(iterator.next().key()));
+            assertFalse(iterator.hasNext());
+        } finally {
+            list.close();
+        }
+    }
+
+    @Test
+    void writeLoggedEarlierButPutLaterDoesNotHideTheLaterOne() {
+        ArenaSkipList list = new ArenaSkipList(0);
+        try {
+            // log positions 30 and 10 are put first, then 20 comes to the middle of the chain
+            list.put(segment("a"), segment("30"), NO_BATCH, 30);
+            list.put(segment("a"), segment("10"), NO_BATCH, 10);
+            list.put(segment("a"), segment("20"), NO_BATCH, 20);
+            assertEquals("30", string(list.get(segment("a"), Long.MAX_VALUE).value()));
+
+            // writes which are not logged replace the value as they come
+            list.put(segment("b"), segment("1"), NO_BATCH, 0);
+            list.put(segment("b"), null, NO_BATCH, 0);
+            assertNull(list.get(segment("b"), Long.MAX_VALUE).value());
+
+            // a batch logged later is not seen by an older snapshot, the single write under it is
+            list.put(segment("c"), segment("batch"), 2, 40);
+            list.put(segment("c"), segment("single"), NO_BATCH, 35);
+            assertEquals("single", string(list.get(segment("c"), 1).value()));
+            assertEquals("batch", string(list.get(segment("c"), 2).value()));
+        } finally {
+            list.close();
+        }
+    }
+
+    @Test
+    void abortedRecordsAreSeenByNoSnapshot() {
+        ArenaSkipList list = new ArenaSkipList(0);
+        try {
+            list.put(segment("a"), segment("1"), NO_BATCH, 0);
+            list.abort(list.put(segment("a"), segment("2"), 2, 0));
+            list.abort(list.put(segment("b"), segment("2"), 2, 0));
+
+            assertEquals("1", string(list.get(segment("a"), Long.MAX_VALUE).value()));
+            assertNull(list.get(segment("b"), Long.MAX_VALUE));
+            Iterator<Entry<MemorySegment>> iterator = list.get(null, null, Long.MAX_VALUE);
+            assertEquals("a", string(iterator.next().key()));
+            assertFalse(iterator.hasNext());
+        } finally {
+            list.close();
+        }
+    }
+
+    // checks that the keys come in order and every value is whole
+    private static Set<String> scan(ArenaSkipList list) {
+        Set<String> keys = new HashSet<>();
+        String previous = null;
+        Iterator<Entry<MemorySegment>> iterator = list.get(null, null, Long.MAX_VALUE);
+        while (iterator.hasNext()) {
+            Entry<MemorySegment> entry = iterator.next();
+            String key = string(entry.key());
+            assertTrue(previous == null || previous.compareTo(key) < 0, previous + " >= " + key);
+            assertTrue(string(entry.value()).startsWith(key + ':'), "torn value of " + key);
+            keys.add(key);
+            previous = key;
+        }
+        return keys;
+    }
+
+    private static Thread thread(AtomicReference<Throwable> failure, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static String key(int i) {
+        return String.format("key%08d", i);
+    }
+
+    private static String sharedKey(int i) {
+        return String.format("shared%04d", i);
+    }
+
+    private static String value(String key, int version) {
+        return key + ':' + version;
+    }
+
+    private static MemorySegment segment(String s) {
+        return MemorySegment.ofArray(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    private static final int KEYS = 20_000;
+    private static final int PROBES = 200_000;
+
+    @Test
+    void addedKeysAreAlwaysFound() {
+        Random random = new Random(1);
+        BloomFilter filter = BloomFilter.create(KEYS, 0.01);
+        MemorySegment[] keys = new MemorySegment[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            // empty keys, keys shorter and longer than a word
+            byte[] key = new byte[random.nextInt(40)];
+            random.nextBytes(key);
+            keys[i] = MemorySegment.ofArray(key);
+            filter.add(keys[i]);
+        }
+        for (MemorySegment key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void falsePositiveRateIsAboutConfigured() {
+        for (double rate : new double[] {0.1, 0.01, 0.001}) {
+            BloomFilter filter = BloomFilter.create(KEYS, rate);
+            for (int i = 0; i < KEYS; i++) {
+                filter.add(key("present", i));
+            }
+            int falsePositives = 0;
+            for (int i = 0; i < PROBES; i++) {
+                if (filter.mightContain(key("absent", i))) {
+                    falsePositives++;
+                }
+            }
+            double measured = (double) falsePositives / PROBES;
+            assertTrue(measured < rate * 1.5, () -> "configured " + rate + ", measured " + measured);
+        }
+    }
+
+    @Test
+    void readFilterAnswersAsWritten() {
+        BloomFilter filter = BloomFilter.create(KEYS, 0.01);
+        for (int i = 0; i < KEYS; i++) {
+            filter.add(key("present", i));
+        }
+        // the section is read at an offset, as it follows the blocks of the table
+        long offset = 24;
+        MemorySegment table = MemorySegment.ofArray(new byte[(int) (offset + filter.byteSize())]);
+        assertEquals(filter.byteSize(), filter.write(table, offset));
+
+        BloomFilter read = BloomFilter.read(table, offset);
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(read.mightContain(key("present", i)));
+            assertEquals(filter.mightContain(key("absent", i)), read.mightContain(key("absent", i)));
+        }
+    }
+
+    // a table without entries still has a filter section, which rules out every key
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter filter = BloomFilter.create(0, 0.01);
+        for (int i = 0; i < PROBES; i++) {
+            assertFalse(filter.mightContain(key("absent", i)));
+        }
+    }
+
+    @Test
+    void rateOutOfRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.create(KEYS, 0));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.create(KEYS, 1));
+    }
+
+    private static MemorySegment key(String prefix, int i) {
+        return MemorySegment.ofArray((prefix + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
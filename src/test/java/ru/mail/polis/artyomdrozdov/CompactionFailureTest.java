@@ -0,0 +1,88 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactionFailureTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void backgroundCompactionFailureIsThrownByWritesFlushesAndClose() throws Exception {
+        Config config = Config.builder(dir, 1024 * 1024).levelZeroCompactionTrigger(2).build();
+        MemorySegmentDao dao = new MemorySegmentDao(config);
+        try {
+            upsertRange(dao, 0);
+            dao.flush();
+            occupyCompactionOutput();
+
+            // the second table triggers a compaction of both, which can't create its output
+            upsertRange(dao, 1);
+            IllegalStateException failure = null;
+            try {
+                dao.flush();
+            } catch (IllegalStateException e) {
+                // the compaction may fail before the flush returns
+                failure = e;
+            }
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (failure == null && System.nanoTime() < deadline) {
+                try {
+                    dao.upsert(entry("probe", 0));
+                    Thread.sleep(10);
+                } catch (IllegalStateException e) {
+                    failure = e;
+                }
+            }
+            assertTrue(failure != null, "compaction failure is not reported");
+            assertEquals("Background compaction failed", failure.getMessage());
+
+            assertThrows(IllegalStateException.class, () -> dao.upsertBatch(List.of(entry("batch", 0))));
+            assertThrows(IllegalStateException.class, dao::flush);
+            assertThrows(IllegalStateException.class, dao::compact);
+        } finally {
+            IOException closeFailure = assertThrows(IOException.class, dao::close);
+            assertEquals("Background compaction failed", closeFailure.getMessage());
+        }
+    }
+
+    private static void upsertRange(MemorySegmentDao dao, int table) {
+        for (int i = 0; i < 1000; i++) {
+            dao.upsert(entry(String.format("key%05d", i), table));
+        }
+    }
+
+    private static Entry<MemorySegment> entry(String key, int value) {
+        return new BaseEntry<>(
+                MemorySegment.ofArray(key.getBytes(StandardCharsets.UTF_8)),
+                MemorySegment.ofArray(new byte[] {(byte) value})
+        );
+    }
+
+    // file ids are handed out in order: the next one goes to the second table, the one after it to the compaction
+    private void occupyCompactionOutput() throws IOException {
+        long lastId = -1;
+        try (DirectoryStream<Path> tables = Files.newDirectoryStream(dir, "data*.dat")) {
+            for (Path table : tables) {
+                lastId = Math.max(lastId, Long.parseLong(table.getFileName().toString().replaceAll("\\D", "")));
+            }
+        }
+        Files.createFile(Storage.tableFile(Config.builder(dir, 0).build(), lastId + 2));
+    }
+}
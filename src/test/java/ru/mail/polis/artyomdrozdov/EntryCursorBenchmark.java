@@ -0,0 +1,75 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+// Bytes allocated per entry and time of a full scan through the iterator and through the cursor,
+// for tables of plain blocks, compressed blocks and values in the value log.
+// Not a test: run main() with [entries].
+final class EntryCursorBenchmark {
+
+    private static final int RUNS = 4;
+
+    private EntryCursorBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (String layout : new String[] {"plain", "compressed", "value log"}) {
+            Config config = Config.builder(Files.createTempDirectory("cursor"), 4 * 1024 * 1024)
+                    .blockCompression(layout.equals("compressed"))
+                    .valueSeparationThresholdBytes(layout.equals("value log") ? 16 : Long.MAX_VALUE)
+                    .build();
+            try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+                for (int i = 0; i < entries; i++) {
+                    dao.upsert(new BaseEntry<>(
+                            segment(String.format("key%08d", i)),
+                            segment("value" + i + "z".repeat(i % 64))
+                    ));
+                }
+            }
+
+            // reopened, so every entry is read from the tables
+            try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+                for (int run = 0; run < RUNS; run++) {
+                    long iteratorStart = System.nanoTime();
+                    long iteratorBytes = threads.getThreadAllocatedBytes(thread);
+                    long iteratorSum = 0;
+                    Iterator<Entry<MemorySegment>> iterator = dao.get(null, null);
+                    while (iterator.hasNext()) {
+                        iteratorSum += iterator.next().value().byteSize();
+                    }
+                    long cursorStart = System.nanoTime();
+                    long cursorBytes = threads.getThreadAllocatedBytes(thread);
+                    long cursorSum = 0;
+                    EntryCursor cursor = dao.cursor(null, null);
+                    while (cursor.advance()) {
+                        cursorSum += cursor.valueSize();
+                    }
+                    long end = System.nanoTime();
+                    long endBytes = threads.getThreadAllocatedBytes(thread);
+                    if (iteratorSum != cursorSum) {
+                        throw new IllegalStateException("Scans differ: " + iteratorSum + " and " + cursorSum);
+                    }
+                    System.out.printf("%-10s iterator %6.1f B/entry %5d ms | cursor %6.2f B/entry %5d ms%n",
+                            layout,
+                            (cursorBytes - iteratorBytes) / (double) entries, (cursorStart - iteratorStart) / 1_000_000,
+                            (endBytes - cursorBytes) / (double) entries, (end - cursorStart) / 1_000_000);
+                }
+            }
+        }
+    }
+
+    private static MemorySegment segment(String s) {
+        return MemorySegment.ofArray(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntryCursorTest {
+
+    private static final int KEYS = 3_000;
+
+    @TempDir
+    Path dir;
+
+    enum Layout {
+        PLAIN,
+        COMPRESSED_BLOCKS,
+        SEPARATED_VALUES
+    }
+
+    // two tables, then memtables which overwrite, delete and bring back keys of the tables,
+    // the small threshold leaves some of the memtables flushing while the scans go
+    @ParameterizedTest
+    @EnumSource(Layout.class)
+    void cursorScansLikeIterator(Layout layout) throws Exception {
+        Config config = Config.builder(dir, 32 * 1024)
+                .blockCompression(layout == Layout.COMPRESSED_BLOCKS)
+                .valueSeparationThresholdBytes(layout == Layout.SEPARATED_VALUES ? 16 : Long.MAX_VALUE)
+                .levelZeroCompactionTrigger(Integer.MAX_VALUE)
+                .build();
+        NavigableMap<String, String> expected = new TreeMap<>();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < KEYS; i++) {
+                upsert(dao, expected, i, "first" + i);
+            }
+            dao.flush();
+            for (int i = 0; i < KEYS; i += 3) {
+                upsert(dao, expected, i, "second" + i + "x".repeat(i % 40));
+            }
+            for (int i = 0; i < KEYS; i += 5) {
+                upsert(dao, expected, i, null);
+            }
+            dao.flush();
+            assertScans(dao, expected);
+
+            for (int i = 0; i < KEYS; i += 7) {
+                upsert(dao, expected, i, "third" + i);
+            }
+            for (int i = 1; i < KEYS; i += 11) {
+                upsert(dao, expected, i, null);
+            }
+            List<Entry<MemorySegment>> batch = new ArrayList<>();
+            for (int i = 0; i < KEYS; i += 13) {
+                String value = i % 2 == 0 ? "batch" + i : null;
+                batch.add(entry(key(i), value));
+                put(expected, key(i), value);
+            }
+            dao.upsertBatch(batch);
+            assertScans(dao, expected);
+        }
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            assertScans(dao, expected);
+        }
+    }
+
+    private static void assertScans(MemorySegmentDao dao, NavigableMap<String, String> expected) {
+        assertScan(dao, expected, null, null);
+        assertScan(dao, expected, key(KEYS / 2), null);
+        assertScan(dao, expected, null, key(KEYS / 2));
+        // bounds between keys and past the last one
+        assertScan(dao, expected, key(10) + "a", key(20) + "a");
+        assertScan(dao, expected, key(KEYS), null);
+        Random random = new Random(KEYS);
+        for (int i = 0; i < 20; i++) {
+            int from = random.nextInt(KEYS);
+            assertScan(dao, expected, key(from), key(from + random.nextInt(KEYS / 10)));
+        }
+    }
+
+    private static void assertScan(
+            MemorySegmentDao dao,
+            NavigableMap<String, String> expected,
+            String from,
+            String to) {
+        Iterator<Entry<MemorySegment>> iterator = dao.get(segment(from), segment(to));
+        EntryCursor cursor = dao.cursor(segment(from), segment(to));
+        String range = "[" + from + ", " + to + ")";
+        for (Map.Entry<String, String> entry : range(expected, from, to).entrySet()) {
+            Entry<MemorySegment> next = iterator.next();
+            assertEquals(entry.getKey(), string(next.key()), range);
+            assertEquals(entry.getValue(), string(next.value()), range);
+
+            assertTrue(cursor.advance(), range);
+            assertFalse(cursor.isTombstone());
+            assertEquals(entry.getKey(), string(cursor.keyData(), cursor.keyOffset(), cursor.keySize()), range);
+            assertEquals(entry.getValue(), string(cursor.valueData(), cursor.valueOffset(), cursor.valueSize()), range);
+        }
+        assertFalse(iterator.hasNext(), range);
+        assertFalse(cursor.advance(), range);
+        // stays past the end
+        assertFalse(cursor.advance(), range);
+    }
+
+    private static NavigableMap<String, String> range(NavigableMap<String, String> map, String from, String to) {
+        if (from == null && to == null) {
+            return map;
+        }
+        if (from == null) {
+            return map.headMap(to, false);
+        }
+        if (to == null) {
+            return map.tailMap(from, true);
+        }
+        return from.compareTo(to) < 0 ? map.subMap(from, true, to, false) : new TreeMap<>();
+    }
+
+    private static void upsert(MemorySegmentDao dao, NavigableMap<String, String> expected, int i, String value) {
+        dao.upsert(entry(key(i), value));
+        put(expected, key(i), value);
+    }
+
+    private static void put(NavigableMap<String, String> expected, String key, String value) {
+        if (value == null) {
+            expected.remove(key);
+        } else {
+            expected.put(key, value);
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value) {
+        return new BaseEntry<>(segment(key), segment(value));
+    }
+
+    private static MemorySegment segment(String s) {
+        return s == null ? null : MemorySegment.ofArray(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String string(MemorySegment data, long offset, long size) {
+        return string(data.asSlice(offset, size));
+    }
+}
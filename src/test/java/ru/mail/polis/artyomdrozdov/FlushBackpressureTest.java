@@ -0,0 +1,131 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlushBackpressureTest {
+
+    private static final int VALUE_SIZE = 1000;
+    // about 16 entries per memtable
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+    private static final int MEMTABLES = 20;
+    private static final int ENTRIES = (int) (MEMTABLES * FLUSH_THRESHOLD / VALUE_SIZE);
+
+    @TempDir
+    Path dir;
+
+    // flushes are slowed down by the rate limiter, so the writer outruns them unless it waits for the queue
+    @Test
+    void writersWaitForFullFlushQueueAndResume() throws IOException {
+        long bytesPerSecond = 160 * 1024;
+        Config config = configBuilder()
+                .maxFlushQueueSize(1)
+                .backgroundWriteBytesPerSecond(bytesPerSecond)
+                .build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ENTRIES; i++) {
+                dao.upsert(entry(i));
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // the writer is at most the active and the queued memtables ahead of the flushes
+            long minMillis = (ENTRIES * (long) VALUE_SIZE - 3 * FLUSH_THRESHOLD) * 1000 / bytesPerSecond;
+            assertTrue(millis >= minMillis, millis + " ms, expected at least " + minMillis);
+
+            for (int i = 0; i < ENTRIES; i++) {
+                assertValue(dao, i);
+            }
+        }
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < ENTRIES; i++) {
+                assertValue(dao, i);
+            }
+        }
+    }
+
+    // a single memtable in the flush queue is already half of it
+    @Test
+    void writesSlowDownWhileFlushFallsBehind() throws IOException {
+        long slowdownMicros = 20_000;
+        Config config = configBuilder()
+                .maxFlushQueueSize(1)
+                .writeSlowdownMicros(slowdownMicros)
+                // the flush takes about half a second
+                .backgroundWriteBytesPerSecond(32 * 1024)
+                .build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            int key = 0;
+            // the write making the memtable oversized queues it
+            for (; key * (long) VALUE_SIZE <= FLUSH_THRESHOLD; key++) {
+                dao.upsert(entry(key));
+            }
+
+            int slowWrites = 10;
+            long start = System.nanoTime();
+            for (int i = 0; i < slowWrites; i++) {
+                dao.upsert(entry(key++));
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            assertTrue(micros >= slowWrites * slowdownMicros, micros + " us");
+        }
+    }
+
+    // a failed flush stays in the queue, so the writers which would wait for it fail instead
+    @Test
+    void writersFailAfterFlushFailure() throws IOException {
+        Config config = configBuilder().maxFlushQueueSize(1).build();
+        MemorySegmentDao dao = new MemorySegmentDao(config);
+        try {
+            // the first flush can't create its table
+            Files.createFile(Storage.tableFile(config, 0));
+            assertThrows(StorageClosedException.class, () -> {
+                for (int i = 0; i < ENTRIES; i++) {
+                    dao.upsert(entry(i));
+                }
+            });
+            assertThrows(StorageClosedException.class, dao::flush);
+        } finally {
+            dao.close();
+        }
+    }
+
+    private Config.Builder configBuilder() {
+        return Config.builder(dir, FLUSH_THRESHOLD).levelZeroCompactionTrigger(Integer.MAX_VALUE);
+    }
+
+    private static Entry<MemorySegment> entry(int i) {
+        return new BaseEntry<>(key(i), MemorySegment.ofArray(value(i)));
+    }
+
+    private static void assertValue(MemorySegmentDao dao, int i) {
+        Entry<MemorySegment> entry = dao.get(key(i));
+        assertNotNull(entry, "key " + i);
+        assertArrayEquals(value(i), entry.value().toByteArray());
+    }
+
+    private static MemorySegment key(int i) {
+        return MemorySegment.ofArray("key%05d".formatted(i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+}
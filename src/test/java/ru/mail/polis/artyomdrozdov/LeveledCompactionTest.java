@@ -0,0 +1,183 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LeveledCompactionTest {
+
+    private static final int KEYS_PER_TABLE = 100;
+
+    @TempDir
+    Path dir;
+
+    private Config config;
+    private Manifest manifest;
+    private ValueLog valueLog;
+    private final List<SSTable> sstables = new ArrayList<>();
+    private long sequence;
+    // every table of KEYS_PER_TABLE keys takes the same number of bytes
+    private long tableBytes;
+
+    @BeforeEach
+    void open() throws IOException {
+        config = new Config(dir, 1 << 20);
+        manifest = Manifest.open(config);
+        valueLog = ValueLog.load(config, List.of());
+        SSTable sample = table(0, 0);
+        tableBytes = sample.byteSize();
+        sstables.remove(sample);
+        sample.file().release();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (SSTable sstable : sstables) {
+            sstable.file().release();
+        }
+        valueLog.release();
+        manifest.close();
+    }
+
+    @Test
+    void levelZeroIsMergedAtTrigger() throws IOException {
+        LeveledCompaction compaction = new LeveledCompaction(config(3, Long.MAX_VALUE));
+        // level 1 tables of [0;99], [100;199] and [200;299], flushed ones overlap the first two only
+        SSTable first = table(1, 0);
+        SSTable second = table(1, 100);
+        table(1, 200);
+        SSTable flushed = table(0, 50);
+        assertNull(compaction.pick(sstables));
+
+        SSTable secondFlushed = table(0, 60);
+        assertNull(compaction.pick(sstables));
+
+        SSTable thirdFlushed = table(0, 90);
+        CompactionPicker.Task task = compaction.pick(sstables);
+        assertEquals(1, task.outputLevel());
+        assertEquals(List.of(flushed, secondFlushed, thirdFlushed, first, second), task.inputs());
+    }
+
+    @Test
+    void oversizedLevelIsMergedIntoNext() throws IOException {
+        // level 1 holds two tables, level 2 holds twenty
+        LeveledCompaction compaction = new LeveledCompaction(config(4, tableBytes * 2));
+        SSTable first = table(1, 0);
+        table(1, 1000);
+        SSTable levelTwo = table(2, 0);
+        table(2, 2000);
+        assertNull(compaction.pick(sstables));
+
+        SSTable extra = table(1, 500);
+        CompactionPicker.Task task = compaction.pick(sstables);
+        assertEquals(2, task.outputLevel());
+        // a single table of the level with the tables of the next level it overlaps
+        assertEquals(List.of(first, levelTwo), task.inputs());
+
+        sstables.remove(extra);
+        extra.file().release();
+        for (int i = 0; i < 18; i++) {
+            table(2, 3000 + i * 100);
+        }
+        assertNull(compaction.pick(sstables));
+
+        table(2, 10000);
+        task = compaction.pick(sstables);
+        assertEquals(3, task.outputLevel());
+        assertEquals(List.of(levelTwo), task.inputs());
+    }
+
+    @Test
+    void levelIsCompactedRoundRobin() throws IOException {
+        LeveledCompaction compaction = new LeveledCompaction(config(4, tableBytes));
+        SSTable first = table(1, 0);
+        SSTable second = table(1, 100);
+        SSTable third = table(1, 200);
+
+        // the layout does not change, so every step picks the table after the previous one
+        for (SSTable expected : List.of(first, second, third, first, second)) {
+            CompactionPicker.Task task = compaction.pick(sstables);
+            assertEquals(2, task.outputLevel());
+            assertEquals(List.of(expected), task.inputs());
+        }
+    }
+
+    // default ratio of 0.2, so 10 tombstones of 100 records do not trigger anything and 50 do
+    @Test
+    void levelZeroTombstonesTriggerMerge() throws IOException {
+        LeveledCompaction compaction = new LeveledCompaction(config(4, Long.MAX_VALUE));
+        SSTable levelOne = table(1, 0);
+        SSTable flushed = table(0, 50, 10);
+        assertNull(compaction.pick(sstables));
+
+        SSTable deletes = table(0, 60, 50);
+        CompactionPicker.Task task = compaction.pick(sstables);
+        assertEquals(1, task.outputLevel());
+        assertEquals(List.of(flushed, deletes, levelOne), task.inputs());
+    }
+
+    @Test
+    void deeperTombstonesArePushedDownThenRewritten() throws IOException {
+        LeveledCompaction compaction = new LeveledCompaction(config(4, Long.MAX_VALUE));
+        SSTable levelTwo = table(2, 0);
+        SSTable overlapping = table(1, 50, 50);
+        // the older table may hold the deleted keys, so the tombstones go down to meet it
+        CompactionPicker.Task task = compaction.pick(sstables);
+        assertEquals(2, task.outputLevel());
+        assertEquals(List.of(overlapping, levelTwo), task.inputs());
+
+        sstables.remove(overlapping);
+        overlapping.file().release();
+        // nothing older overlaps, rewriting the table in place drops the tombstones
+        SSTable alone = table(1, 1000, 50);
+        task = compaction.pick(sstables);
+        assertEquals(1, task.outputLevel());
+        assertEquals(List.of(alone), task.inputs());
+    }
+
+    private Config config(int levelZeroCompactionTrigger, long levelOneMaxBytes) {
+        return Config.builder(dir, 1 << 20)
+                .levelZeroCompactionTrigger(levelZeroCompactionTrigger)
+                .levelOneMaxBytes(levelOneMaxBytes)
+                .build();
+    }
+
+    private SSTable table(int level, int from) throws IOException {
+        return table(level, from, 0);
+    }
+
+    // a table of KEYS_PER_TABLE keys starting from the given one, newer than the previous ones,
+    // the first ones are tombstones
+    private SSTable table(int level, int from, int tombstones) throws IOException {
+        long tableId = manifest.nextFileId();
+        Path file = Storage.tableFile(config, tableId);
+        try (SSTableWriter writer = new SSTableWriter(
+                config, manifest, file, KEYS_PER_TABLE, Set.of(), RateLimiter.UNLIMITED)) {
+            for (int i = from; i < from + KEYS_PER_TABLE; i++) {
+                writer.write(new BaseEntry<>(key(i), i < from + tombstones ? null : key(i)));
+            }
+            writer.finish();
+        }
+        SSTable sstable = SSTable.open(new Manifest.Table(tableId, sequence++, level), MappedFile.map(file), valueLog);
+        sstables.add(sstable);
+        return sstable;
+    }
+
+    private static MemorySegment key(int i) {
+        return MemorySegment.ofArray("key%05d".formatted(i).getBytes(StandardCharsets.UTF_8));
+    }
+}
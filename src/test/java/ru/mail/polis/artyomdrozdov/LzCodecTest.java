@@ -0,0 +1,111 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LzCodecTest {
+
+    private final LzCodec codec = new LzCodec();
+
+    @Test
+    void empty() {
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    void shorterThanMatch() {
+        for (int length = 1; length <= 8; length++) {
+            byte[] data = new byte[length];
+            Arrays.fill(data, (byte) 'a');
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    void literalLengthsAroundNibbleAndByteLimits() {
+        Random random = new Random(1);
+        for (int length : new int[] {14, 15, 16, 254, 255, 256, 269, 270, 271, 525, 1024}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    void matchLengthsAroundNibbleAndByteLimits() {
+        for (int length : new int[] {4, 18, 19, 20, 258, 273, 274, 275, 529, 65_536, 70_000}) {
+            byte[] data = new byte[length + 8];
+            Arrays.fill(data, 0, 8, (byte) 'x');
+            Arrays.fill(data, 8, data.length, (byte) 'y');
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    void incompressible() {
+        byte[] data = new byte[64 * 1024];
+        new Random(2).nextBytes(data);
+        byte[] compressed = roundTrip(data);
+        assertTrue(compressed.length <= LzCodec.maxCompressedLength(data.length));
+    }
+
+    @Test
+    void compressible() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("key").append(String.format("%010d", i)).append("value").append(i % 7);
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = roundTrip(data);
+        assertTrue(compressed.length < data.length / 2, () -> compressed.length + " of " + data.length);
+    }
+
+    @Test
+    void matchesFartherThanMaxOffset() {
+        byte[] data = new byte[200_000];
+        Random random = new Random(3);
+        byte[] pattern = new byte[1000];
+        random.nextBytes(pattern);
+        for (int offset = 0; offset + pattern.length <= data.length; offset += 70_000) {
+            System.arraycopy(pattern, 0, data, offset, pattern.length);
+        }
+        roundTrip(data);
+    }
+
+    @Test
+    void randomMixtures() {
+        Random random = new Random(4);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            int position = 0;
+            while (position < data.length) {
+                int run = Math.min(data.length - position, 1 + random.nextInt(300));
+                if (random.nextBoolean() && position >= run) {
+                    System.arraycopy(data, random.nextInt(position - run + 1), data, position, run);
+                } else {
+                    for (int j = 0; j < run; j++) {
+                        data[position + j] = (byte) random.nextInt(4);
+                    }
+                }
+                position += run;
+            }
+            roundTrip(data);
+        }
+    }
+
+    // the codec instance is reused, so a stale hash table would break the next round trip
+    private byte[] roundTrip(byte[] data) {
+        byte[] compressed = new byte[LzCodec.maxCompressedLength(data.length)];
+        int compressedSize = codec.compress(data, data.length, compressed);
+        byte[] restored = new byte[data.length];
+        LzCodec.decompress(compressed, compressedSize, restored, restored.length);
+        assertArrayEquals(data, restored);
+        return Arrays.copyOf(compressed, compressedSize);
+    }
+}
@@ -0,0 +1,220 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void editsSurviveReopen() throws IOException {
+        Config config = config();
+        long first;
+        long second;
+        long valueLog;
+        long compacted;
+        try (Manifest manifest = Manifest.open(config)) {
+            first = addTable(manifest, config);
+            second = addTable(manifest, config);
+            valueLog = manifest.nextFileId();
+            compacted = manifest.nextFileId();
+            createFile(Storage.tableFile(config, compacted));
+            manifest.replaceTables(List.of(first, second), List.of(compacted), 1, List.of(valueLog), List.of());
+        }
+
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(List.of(compacted), ids(manifest));
+            assertEquals(1, manifest.tables().get(0).level());
+            assertEquals(Set.of(valueLog), manifest.valueLogs());
+            assertTrue(manifest.nextFileId() > compacted);
+        }
+        // the replaced tables are gone even if the process died before deleting them
+        assertTrue(Files.notExists(Storage.tableFile(config, first)));
+        assertTrue(Files.notExists(Storage.tableFile(config, second)));
+    }
+
+    // a compaction dropping all of its entries replaces no tables with none
+    @Test
+    void emptyEditDoesNotHideFollowingOnes() throws IOException {
+        Config config = config();
+        long table;
+        try (Manifest manifest = Manifest.open(config)) {
+            manifest.replaceTables(List.of(), List.of(), 0, List.of(), List.of());
+            table = addTable(manifest, config);
+        }
+
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(List.of(table), ids(manifest));
+        }
+    }
+
+    @Test
+    void uncommittedFilesWithLowerIdsAreDeleted() throws IOException {
+        Config config = config();
+        long input;
+        long compacted;
+        long compactedValueLog;
+        long flushed;
+        try (Manifest manifest = Manifest.open(config)) {
+            input = addTable(manifest, config);
+            // a compaction takes its ids and writes its files
+            compacted = manifest.nextFileId();
+            compactedValueLog = manifest.nextFileId();
+            createFile(Storage.tableFile(config, compacted));
+            createFile(ValueLog.file(config, compactedValueLog));
+            // a flush takes a greater id and commits before the compaction does, then the process dies
+            flushed = addTable(manifest, config);
+        }
+
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(
+                    List.of(new Manifest.Table(input, 0, 0), new Manifest.Table(flushed, 1, 0)),
+                    manifest.tables()
+            );
+            assertTrue(manifest.nextFileId() > flushed);
+        }
+        assertTrue(Files.notExists(Storage.tableFile(config, compacted)));
+        assertTrue(Files.notExists(ValueLog.file(config, compactedValueLog)));
+        assertTrue(Files.exists(Storage.tableFile(config, input)));
+        assertTrue(Files.exists(Storage.tableFile(config, flushed)));
+    }
+
+    @Test
+    void tornTailIsDropped() throws IOException {
+        Config config = config();
+        long kept;
+        try (Manifest manifest = Manifest.open(config)) {
+            kept = addTable(manifest, config);
+            addTable(manifest, config);
+        }
+        Path file = dir.resolve("MANIFEST");
+        long size = Files.size(file);
+        for (long tornSize = size - 1; tornSize > size - 24; tornSize -= 7) {
+            Path torn = Files.createTempDirectory(dir, "torn");
+            Files.copy(file, torn.resolve("MANIFEST"));
+            Files.copy(Storage.tableFile(config, kept), Storage.tableFile(config(torn), kept));
+            truncate(torn.resolve("MANIFEST"), tornSize);
+            assertRecovered(config(torn), kept);
+        }
+    }
+
+    @Test
+    void corruptedTailIsDropped() throws IOException {
+        Config config = config();
+        long kept;
+        try (Manifest manifest = Manifest.open(config)) {
+            kept = addTable(manifest, config);
+            addTable(manifest, config);
+        }
+        Path file = dir.resolve("MANIFEST");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, channel.size() - 1);
+            lastByte.put(0, (byte) (lastByte.get(0) ^ 1)).rewind();
+            channel.write(lastByte, channel.size() - 1);
+        }
+        assertRecovered(config, kept);
+    }
+
+    @Test
+    void garbageAfterLastEditIsDropped() throws IOException {
+        Config config = config();
+        long kept;
+        try (Manifest manifest = Manifest.open(config)) {
+            kept = addTable(manifest, config);
+        }
+        Files.write(dir.resolve("MANIFEST"), new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, StandardOpenOption.APPEND);
+        assertRecovered(config, kept);
+    }
+
+    // files of the format before the manifest must not be hidden or overwritten
+    @Test
+    void dataFilesWithoutManifestAreRejected() throws IOException {
+        Config config = config();
+        createFile(dir.resolve("data0.dat"));
+        createFile(dir.resolve("data_compacted_.dat"));
+
+        assertThrows(IllegalStateException.class, () -> Manifest.open(config));
+        assertThrows(IllegalStateException.class, () -> new MemorySegmentDao(config));
+        assertTrue(Files.exists(dir.resolve("data0.dat")));
+        assertTrue(Files.exists(dir.resolve("data_compacted_.dat")));
+        assertTrue(Files.notExists(dir.resolve("MANIFEST")));
+    }
+
+    // the sweep of dead files takes only the names of tables and value logs
+    @Test
+    void foreignFilesAreNotSwept() throws IOException {
+        Config config = config();
+        long kept;
+        try (Manifest manifest = Manifest.open(config)) {
+            kept = addTable(manifest, config);
+        }
+        createFile(dir.resolve("backup.dat"));
+        createFile(dir.resolve("data1.dat.bak"));
+        createFile(dir.resolve("snapshot2.dat"));
+
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(List.of(kept), ids(manifest));
+        }
+        assertTrue(Files.exists(dir.resolve("backup.dat")));
+        assertTrue(Files.exists(dir.resolve("data1.dat.bak")));
+        assertTrue(Files.exists(dir.resolve("snapshot2.dat")));
+    }
+
+    // only the table of the intact edit is live, and edits appended after recovery are not hidden by the tail
+    private static void assertRecovered(Config config, long kept) throws IOException {
+        long added;
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(List.of(kept), ids(manifest));
+            added = addTable(manifest, config);
+        }
+        try (Manifest manifest = Manifest.open(config)) {
+            assertEquals(List.of(kept, added), ids(manifest));
+        }
+    }
+
+    private static List<Long> ids(Manifest manifest) {
+        return manifest.tables().stream().map(Manifest.Table::id).toList();
+    }
+
+    private static long addTable(Manifest manifest, Config config) throws IOException {
+        long id = manifest.nextFileId();
+        createFile(Storage.tableFile(config, id));
+        manifest.addTable(id, -1);
+        return id;
+    }
+
+    private static void createFile(Path file) throws IOException {
+        Files.write(file, new byte[] {42});
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private Config config() {
+        return config(dir);
+    }
+
+    private static Config config(Path basePath) {
+        return new Config(basePath, 1 << 20);
+    }
+}
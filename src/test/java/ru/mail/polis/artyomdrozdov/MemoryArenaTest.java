@@ -0,0 +1,124 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryArenaTest {
+
+    private static final long EXPECTED_BYTES = 1 << 20;
+
+    @Test
+    void allocationsAreZeroedAlignedAndCountedWithAlignment() {
+        MemoryArena arena = new MemoryArena(EXPECTED_BYTES);
+        try {
+            long first = arena.allocate(5);
+            long second = arena.allocate(16);
+            for (long address : new long[] {first, second}) {
+                assertEquals(0, MemoryArena.offset(address) % Long.BYTES);
+                assertEquals(0, MemoryAccess.getLongAtOffset(arena.slab(address), MemoryArena.offset(address)));
+            }
+            assertEquals(MemoryArena.offset(first) + Long.BYTES, MemoryArena.offset(second));
+            assertEquals(8 + 16, arena.allocatedBytes());
+        } finally {
+            arena.close();
+        }
+    }
+
+    // allocations bump a pointer in the slab, exhausted slabs are followed by new ones
+    @Test
+    void allocationsDoNotOverlap() {
+        MemoryArena arena = new MemoryArena(EXPECTED_BYTES);
+        try {
+            List<Long> addresses = new ArrayList<>();
+            // spans several slabs
+            for (int i = 0; i < 10_000; i++) {
+                long address = arena.allocate(Long.BYTES * 8);
+                arena.slab(address).asSlice(MemoryArena.offset(address), Long.BYTES * 8).fill((byte) i);
+                addresses.add(address);
+            }
+            assertNotEquals(arena.slab(addresses.get(0)), arena.slab(addresses.get(addresses.size() - 1)));
+            for (int i = 0; i < addresses.size(); i++) {
+                long address = addresses.get(i);
+                byte[] bytes = arena.slab(address).asSlice(MemoryArena.offset(address), Long.BYTES * 8).toByteArray();
+                for (byte b : bytes) {
+                    assertEquals((byte) i, b);
+                }
+            }
+            assertEquals(10_000L * Long.BYTES * 8, arena.allocatedBytes());
+        } finally {
+            arena.close();
+        }
+    }
+
+    // a record larger than a quarter of the slab gets a slab of its own and leaves the current one usable
+    @Test
+    void largeAllocationsBypassTheSlab() {
+        MemoryArena arena = new MemoryArena(EXPECTED_BYTES);
+        try {
+            long small = arena.allocate(Long.BYTES);
+            long large = arena.allocate(EXPECTED_BYTES);
+            long next = arena.allocate(Long.BYTES);
+            assertEquals(0, MemoryArena.offset(large));
+            assertEquals(EXPECTED_BYTES, arena.slab(large).byteSize());
+            assertEquals(arena.slab(small), arena.slab(next));
+            assertEquals(MemoryArena.offset(small) + Long.BYTES, MemoryArena.offset(next));
+            assertEquals(EXPECTED_BYTES + 2 * Long.BYTES, arena.allocatedBytes());
+        } finally {
+            arena.close();
+        }
+    }
+
+    @Test
+    void concurrentAllocationsDoNotOverlap() throws Exception {
+        MemoryArena arena = new MemoryArena(EXPECTED_BYTES);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                long id = thread;
+                futures.add(executor.submit(() -> {
+                    List<Long> addresses = new ArrayList<>();
+                    for (int i = 0; i < 5_000; i++) {
+                        long address = arena.allocate(Long.BYTES);
+                        MemoryAccess.setLongAtOffset(arena.slab(address), MemoryArena.offset(address), id);
+                        addresses.add(address);
+                    }
+                    return addresses;
+                }));
+            }
+            for (int thread = 0; thread < 4; thread++) {
+                for (long address : futures.get(thread).get()) {
+                    assertEquals(thread, MemoryAccess.getLongAtOffset(arena.slab(address), MemoryArena.offset(address)));
+                }
+            }
+            assertEquals(4 * 5_000L * Long.BYTES, arena.allocatedBytes());
+        } finally {
+            executor.shutdown();
+            arena.close();
+        }
+    }
+
+    @Test
+    void closeFreesAllSlabs() {
+        MemoryArena arena = new MemoryArena(EXPECTED_BYTES);
+        long small = arena.allocate(Long.BYTES);
+        long large = arena.allocate(EXPECTED_BYTES);
+        arena.close();
+        for (long address : new long[] {small, large}) {
+            assertThrows(
+                    IllegalStateException.class,
+                    () -> MemoryAccess.getLongAtOffset(arena.slab(address), MemoryArena.offset(address))
+            );
+        }
+    }
+}
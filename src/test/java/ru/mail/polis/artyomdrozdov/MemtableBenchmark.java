@@ -0,0 +1,81 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Upsert throughput and GC time of the memtable skiplist against the ConcurrentSkipListMap it replaced.
+// Not a test: run main() with [threads] [upserts], every run fills one fresh map with random keys.
+final class MemtableBenchmark {
+
+    private static final int KEY_SIZE = 16;
+    private static final int VALUE_SIZE = 100;
+    private static final int RUNS = 5;
+
+    private MemtableBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int upserts = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+        for (int run = 0; run < RUNS; run++) {
+            ConcurrentSkipListMap<MemorySegment, MemorySegment> map =
+                    new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
+            report("ConcurrentSkipListMap", threads, upserts, (key, value) ->
+                    map.put(MemorySegment.ofArray(key.toByteArray()), MemorySegment.ofArray(value.toByteArray())));
+
+            ArenaSkipList list = new ArenaSkipList((long) upserts * (KEY_SIZE + VALUE_SIZE));
+            try {
+                report("ArenaSkipList", threads, upserts, (key, value) -> list.put(key, value, 0, 0));
+            } finally {
+                list.close();
+            }
+        }
+    }
+
+    private static void report(String name, int threads, int upserts, Upsert upsert) throws InterruptedException {
+        // the garbage of the previous run is not charged to this one
+        System.gc();
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                byte[] key = new byte[KEY_SIZE];
+                byte[] value = new byte[VALUE_SIZE];
+                MemorySegment keySegment = MemorySegment.ofArray(key);
+                MemorySegment valueSegment = MemorySegment.ofArray(value);
+                for (int i = 0; i < upserts / threads; i++) {
+                    random.nextBytes(key);
+                    upsert.put(keySegment, valueSegment);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-22s threads %2d: %8.0f ops/s, GC %5d ms%n",
+                name, threads, upserts * 1e9 / nanos, gcMillis() - gcBefore);
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += bean.getCollectionTime();
+        }
+        return millis;
+    }
+
+    private interface Upsert {
+        void put(MemorySegment key, MemorySegment value);
+    }
+}
@@ -0,0 +1,86 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private static final long MAX_RATE = 1_600_000;
+    private static final long MIN_RATE = MAX_RATE / 16;
+
+    // the bucket holds at most a tenth of a second worth of bytes, a larger write is let through and paid off after
+    @Test
+    void largeWriteTakesDebt() {
+        RateLimiter limiter = new RateLimiter(10_000);
+        long start = System.nanoTime();
+        limiter.acquire(3_000);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 2000 bytes over the full bucket at 10000 bytes per second
+        assertTrue(waitedMillis >= 150, waitedMillis + " ms");
+
+        RateLimiter.Metrics metrics = limiter.metrics();
+        assertEquals(3_000, metrics.writtenBytes());
+        assertEquals(3_000, metrics.throttledBytes());
+        assertTrue(metrics.throttledMillis() >= 150, metrics.throttledMillis() + " ms");
+    }
+
+    @Test
+    void rateIsHalvedWhileLatencyGrowsAndRecoversWithoutReads() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(MAX_RATE);
+        // sets the long-term average
+        nextInterval(limiter, 1_000);
+        assertEquals(MAX_RATE, limiter.bytesPerSecond());
+
+        nextInterval(limiter, 10_000);
+        assertEquals(MAX_RATE / 2, limiter.bytesPerSecond());
+        nextInterval(limiter, 10_000);
+        assertEquals(MAX_RATE / 4, limiter.bytesPerSecond());
+        assertEquals(2, limiter.metrics().slowdowns());
+
+        // idle intervals double the rate up to the max
+        nextInterval(limiter, 0);
+        assertEquals(MAX_RATE / 2, limiter.bytesPerSecond());
+        nextInterval(limiter, 0);
+        nextInterval(limiter, 0);
+        assertEquals(MAX_RATE, limiter.bytesPerSecond());
+    }
+
+    @Test
+    void rateNeverDropsBelowMinimum() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(MAX_RATE);
+        nextInterval(limiter, 1_000);
+        // the average catches up slowly, so the latency keeps rising above it
+        for (long latency = 10_000; limiter.metrics().slowdowns() < 6; latency *= 10) {
+            nextInterval(limiter, latency);
+            assertTrue(limiter.bytesPerSecond() >= MIN_RATE, limiter.bytesPerSecond() + " bytes per second");
+        }
+        assertEquals(MIN_RATE, limiter.bytesPerSecond());
+
+        // steady latency brings the rate back by the minimal step
+        long rate = limiter.bytesPerSecond();
+        nextInterval(limiter, 1);
+        assertEquals(rate + MIN_RATE, limiter.bytesPerSecond());
+    }
+
+    @Test
+    void unlimitedLimiterDoesNotCount() {
+        RateLimiter limiter = new RateLimiter(Long.MAX_VALUE);
+        limiter.recordLatency(1_000);
+        limiter.acquire(Long.MAX_VALUE / 2);
+        assertEquals(0, limiter.metrics().writtenBytes());
+        assertEquals(Long.MAX_VALUE, limiter.bytesPerSecond());
+    }
+
+    // records a read of the given latency (none for zero), then lets the next write adjust the rate
+    private static void nextInterval(RateLimiter limiter, long latencyNanos) throws InterruptedException {
+        if (latencyNanos > 0) {
+            limiter.recordLatency(latencyNanos);
+        }
+        Thread.sleep(110);
+        limiter.acquire(1);
+    }
+}
@@ -0,0 +1,245 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SSTableTest {
+
+    // a null upper bound means the end of the table, the lower bound is always set
+    private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[0]);
+
+    @TempDir
+    Path dir;
+
+    private final List<Storage> storages = new ArrayList<>();
+    private Manifest manifest;
+
+    @AfterEach
+    void close() throws IOException {
+        for (Storage storage : storages) {
+            storage.close();
+        }
+        storages.clear();
+        if (manifest != null) {
+            manifest.close();
+            manifest = null;
+        }
+    }
+
+    // about 100 bytes per record, so a block holds a few dozens of them
+    @Test
+    void seekAcrossBlockBoundaries() throws IOException {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            entries.add(entry(key(i), i % 10 == 0 ? null : "value" + i + "x".repeat(i % 80)));
+        }
+        Storage storage = write(entries);
+
+        for (int i = 0; i < entries.size(); i++) {
+            assertEntry(entries.get(i), storage.get(entries.get(i).key()));
+            // absent keys sort between two neighbouring records, so some of them fall between blocks
+            assertNull(storage.get(segment(key(i) + "a")));
+        }
+        assertNull(storage.get(segment("a")));
+        assertNull(storage.get(segment("z")));
+
+        for (int from = 0; from < entries.size(); from += 97) {
+            for (int to = from; to <= entries.size(); to += 331) {
+                assertRange(entries.subList(from, to), storage, segment(key(from)), bound(entries, to));
+                // bounds which are not present in the table seek to the next record
+                assertRange(entries.subList(from + 1, Math.max(from + 1, to)), storage,
+                        segment(key(from) + "a"), bound(entries, to));
+            }
+        }
+        assertRange(entries, storage, VERY_FIRST_KEY, null);
+        assertRange(List.of(), storage, segment("z"), null);
+    }
+
+    // short records, so a block has several restart points and most records are not at one
+    @Test
+    void seekBetweenRestartPoints() throws IOException {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            entries.add(entry(key(i), i % 7 == 0 ? null : "v" + i));
+        }
+        Storage storage = write(entries);
+
+        for (int i = 0; i < entries.size(); i++) {
+            assertEntry(entries.get(i), storage.get(entries.get(i).key()));
+            assertNull(storage.get(segment(key(i) + "a")));
+
+            int to = Math.min(i + 5, entries.size());
+            assertRange(entries.subList(i, to), storage, segment(key(i)), bound(entries, to));
+            assertRange(entries.subList(i + 1, to), storage, segment(key(i) + "a"), bound(entries, to));
+        }
+    }
+
+    // the shorter prefix is shared across restart points, the longer one makes every record bigger than a block
+    @Test
+    void longSharedPrefixes() throws IOException {
+        for (int prefixSize : new int[] {100, (int) SSTable.BLOCK_SIZE + 1}) {
+            String prefix = "p".repeat(prefixSize);
+            List<Entry<MemorySegment>> entries = new ArrayList<>();
+            entries.add(entry(prefix, "prefix itself"));
+            for (int i = 0; i < 300; i++) {
+                // a key which is a prefix of the next one
+                entries.add(entry(prefix + key(i), "v" + i));
+                entries.add(entry(prefix + key(i) + "~", i % 3 == 0 ? null : "w" + i));
+            }
+            Storage storage = write(entries);
+
+            for (Entry<MemorySegment> entry : entries) {
+                assertEntry(entry, storage.get(entry.key()));
+            }
+            assertNull(storage.get(segment(prefix.substring(1))));
+            assertNull(storage.get(segment(prefix + key(10) + "a")));
+            assertNull(storage.get(segment(prefix + "z")));
+
+            assertRange(entries, storage, VERY_FIRST_KEY, null);
+            assertRange(entries.subList(21, 41), storage, segment(prefix + key(10)), segment(prefix + key(20)));
+            assertRange(entries.subList(22, 41), storage, segment(prefix + key(10) + "a"), segment(prefix + key(20)));
+
+            close();
+            for (Path file : Files.list(dir).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void keysLargerThanBlock() throws IOException {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // every third record is bigger than a block and takes a block of its own
+            String suffix = i % 3 == 0 ? "k".repeat((int) SSTable.BLOCK_SIZE * (1 + i % 2)) : "";
+            String value = i % 4 == 0 ? "v".repeat((int) SSTable.BLOCK_SIZE * 3) : "value" + i;
+            entries.add(entry(key(i) + suffix, i % 5 == 1 ? null : value));
+        }
+        Storage storage = write(entries);
+
+        for (Entry<MemorySegment> entry : entries) {
+            assertEntry(entry, storage.get(entry.key()));
+        }
+        assertNull(storage.get(segment(key(3))));
+        assertRange(entries, storage, VERY_FIRST_KEY, null);
+        assertRange(entries.subList(3, 13), storage, segment(key(3)), segment(key(13)));
+    }
+
+    @Test
+    void emptyTable() throws IOException {
+        Storage storage = write(List.of());
+
+        assertNull(storage.get(segment(key(0))));
+        assertRange(List.of(), storage, VERY_FIRST_KEY, null);
+        assertRange(List.of(), storage, segment(key(0)), segment(key(10)));
+    }
+
+    // tables of [key00100;key00199], [key00200;key00299] and [key00300;key00399]
+    @Test
+    void tablesOutOfRangeArePruned() throws IOException {
+        List<List<Entry<MemorySegment>>> tables = new ArrayList<>();
+        Storage storage = null;
+        for (int table = 1; table <= 3; table++) {
+            List<Entry<MemorySegment>> entries = new ArrayList<>();
+            for (int i = table * 100; i < table * 100 + 100; i++) {
+                entries.add(entry(key(i), "v" + i));
+            }
+            tables.add(entries);
+            storage = write(entries);
+        }
+
+        assertEquals(3, storage.iterate(VERY_FIRST_KEY, null).size());
+        assertEquals(0, storage.iterate(VERY_FIRST_KEY, segment(key(100))).size());
+        assertEquals(1, storage.iterate(VERY_FIRST_KEY, segment(key(101))).size());
+        assertEquals(1, storage.iterate(segment(key(150)), segment(key(200))).size());
+        assertEquals(2, storage.iterate(segment(key(199)), segment(key(201))).size());
+        assertEquals(1, storage.iterate(segment(key(199) + "a"), segment(key(300))).size());
+        assertEquals(1, storage.iterate(segment(key(399)), null).size());
+        assertEquals(0, storage.iterate(segment(key(399) + "a"), null).size());
+
+        // the pruned list keeps the older-first order
+        List<Iterator<Entry<MemorySegment>>> iterators = storage.iterate(segment(key(250)), null);
+        assertEquals(2, iterators.size());
+        assertEntry(tables.get(1).get(50), iterators.get(0).next());
+        assertEntry(tables.get(2).get(0), iterators.get(1).next());
+
+        for (List<Entry<MemorySegment>> entries : tables) {
+            for (Entry<MemorySegment> entry : entries) {
+                assertEntry(entry, storage.get(entry.key()));
+            }
+        }
+        assertNull(storage.get(segment(key(99))));
+        assertNull(storage.get(segment(key(400))));
+        assertNull(storage.get(segment(key(199) + "a")));
+    }
+
+    private Storage write(List<Entry<MemorySegment>> entries) throws IOException {
+        Config config = new Config(dir, 1 << 20);
+        if (manifest == null) {
+            manifest = Manifest.open(config);
+        }
+        Storage.save(config, manifest, entries, RateLimiter.UNLIMITED);
+
+        Storage storage = Storage.load(config, manifest);
+        storages.add(storage);
+        return storage;
+    }
+
+    private static void assertRange(
+            List<Entry<MemorySegment>> expected,
+            Storage storage,
+            MemorySegment from,
+            MemorySegment to) {
+        List<Iterator<Entry<MemorySegment>>> iterators = storage.iterate(from, to);
+        // a table out of the range is pruned by its fences
+        Iterator<Entry<MemorySegment>> iterator = iterators.isEmpty() ? Collections.emptyIterator() : iterators.get(0);
+        for (Entry<MemorySegment> entry : expected) {
+            assertEntry(entry, iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static void assertEntry(Entry<MemorySegment> expected, Entry<MemorySegment> actual) {
+        assertArrayEquals(expected.key().toByteArray(), actual.key().toByteArray());
+        if (expected.value() == null) {
+            assertNull(actual.value());
+        } else {
+            assertArrayEquals(expected.value().toByteArray(), actual.value().toByteArray());
+        }
+    }
+
+    private static MemorySegment bound(List<Entry<MemorySegment>> entries, int to) {
+        return to == entries.size() ? null : entries.get(to).key();
+    }
+
+    private static String key(int i) {
+        return "key%05d".formatted(i);
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value) {
+        return new BaseEntry<>(segment(key), value == null ? null : segment(value));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SSTableWriterTest {
+
+    private static final int KEYS = 5_000;
+
+    @TempDir
+    Path dir;
+
+    enum Layout {
+        PLAIN,
+        COMPRESSED_BLOCKS,
+        SEPARATED_VALUES
+    }
+
+    // values bigger than the write buffer bypass it, long keys grow the block index past its initial size
+    @ParameterizedTest
+    @EnumSource(Layout.class)
+    void readsBackWhatWasWritten(Layout layout) throws IOException {
+        Config config = Config.builder(dir, 1 << 20)
+                .blockCompression(layout == Layout.COMPRESSED_BLOCKS)
+                .valueSeparationThresholdBytes(layout == Layout.SEPARATED_VALUES ? 16 : Config.NO_VALUE_SEPARATION)
+                .build();
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key%05d".formatted(i) + (i % 100 == 0 ? "k".repeat(300) : "");
+            String value;
+            if (i % 10 == 0) {
+                value = null;
+            } else if (i % 1_000 == 1) {
+                value = "v".repeat(100 * 1024);
+            } else {
+                value = "value" + i;
+            }
+            entries.add(new BaseEntry<>(segment(key), value == null ? null : segment(value)));
+        }
+
+        long size;
+        long tableId;
+        long valueLogId;
+        try (Manifest manifest = Manifest.open(config)) {
+            tableId = manifest.nextFileId();
+            // the expected count is an upper bound, as for compaction
+            try (SSTableWriter writer = new SSTableWriter(
+                    config,
+                    manifest,
+                    Storage.tableFile(config, tableId),
+                    KEYS * 2L,
+                    Set.of(),
+                    RateLimiter.UNLIMITED)) {
+                for (Entry<MemorySegment> entry : entries) {
+                    writer.write(entry);
+                }
+                size = writer.finish();
+                valueLogId = writer.createdValueLogFile();
+            }
+        }
+        Path file = Storage.tableFile(config, tableId);
+        assertEquals(Files.size(file), size);
+
+        List<Long> valueLogs = valueLogId < 0 ? List.of() : List.of(valueLogId);
+        ValueLog valueLog = ValueLog.load(config, valueLogs);
+        SSTable sstable = SSTable.open(new Manifest.Table(tableId, 0, 0), MappedFile.map(file), valueLog);
+        try {
+            assertEquals(KEYS, sstable.recordsCount());
+            assertEquals(KEYS / 10, sstable.tombstonesCount());
+
+            for (Entry<MemorySegment> entry : entries) {
+                assertEntry(entry, sstable.get(entry.key()));
+            }
+            assertNull(sstable.get(segment("absent")));
+
+            Iterator<Entry<MemorySegment>> iterator = sstable.iterate(MemorySegment.ofArray(new byte[0]), null);
+            for (Entry<MemorySegment> entry : entries) {
+                assertEntry(entry, iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+        } finally {
+            sstable.file().release();
+            valueLog.release();
+        }
+    }
+
+    private static void assertEntry(Entry<MemorySegment> expected, Entry<MemorySegment> actual) {
+        assertArrayEquals(expected.key().toByteArray(), actual.key().toByteArray());
+        if (expected.value() == null) {
+            assertNull(actual.value());
+        } else {
+            assertArrayEquals(expected.value().toByteArray(), actual.value().toByteArray());
+        }
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
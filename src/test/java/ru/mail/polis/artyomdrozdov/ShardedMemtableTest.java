@@ -0,0 +1,125 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedMemtableTest {
+
+    private static final int WRITERS = 4;
+    private static final int KEYS_PER_WRITER = 2_000;
+    // no flush while the keys are written, they all stay in the shards of one memtable
+    private static final long FLUSH_THRESHOLD = 64 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    // keys of every writer are spread over all the shards, the scan merges them back in order
+    @Test
+    void concurrentWritesAreScannedInKeyOrder() throws Exception {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int w = 0; w < WRITERS; w++) {
+                    int writer = w;
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < KEYS_PER_WRITER; i++) {
+                            int key = i * WRITERS + writer;
+                            dao.upsert(entry(key, "value" + key));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertRange(dao, 0, WRITERS * KEYS_PER_WRITER);
+            assertRange(dao, 1_000, 1_500);
+            for (int key = 0; key < WRITERS * KEYS_PER_WRITER; key++) {
+                Entry<MemorySegment> entry = dao.get(key(key));
+                assertNotNull(entry, "key " + key);
+                assertEquals("value" + key, string(entry.value()));
+            }
+        }
+    }
+
+    @Test
+    void latestWriteOfEveryShardWins() throws IOException {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            // an empty memtable has no shards yet
+            assertFalse(dao.get(null, null).hasNext());
+            assertNull(dao.get(key(0)));
+
+            for (int key = 0; key < 100; key++) {
+                dao.upsert(entry(key, "old"));
+            }
+            for (int key = 0; key < 100; key++) {
+                dao.upsert(key % 2 == 0 ? entry(key, "new") : new BaseEntry<>(key(key), null));
+            }
+
+            Iterator<Entry<MemorySegment>> iterator = dao.get(null, null);
+            for (int key = 0; key < 100; key += 2) {
+                Entry<MemorySegment> entry = iterator.next();
+                assertEquals(string(key(key)), string(entry.key()));
+                assertEquals("new", string(entry.value()));
+            }
+            assertFalse(iterator.hasNext());
+            assertNull(dao.get(key(1)));
+        }
+
+        // the merged shards are flushed as one sorted table
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            Iterator<Entry<MemorySegment>> iterator = dao.get(null, null);
+            for (int key = 0; key < 100; key += 2) {
+                assertEquals(string(key(key)), string(iterator.next().key()));
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    private static void assertRange(MemorySegmentDao dao, int from, int to) {
+        Iterator<Entry<MemorySegment>> iterator = dao.get(key(from), key(to));
+        for (int key = from; key < to; key++) {
+            assertTrue(iterator.hasNext(), "key " + key);
+            assertEquals(string(key(key)), string(iterator.next().key()));
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static Entry<MemorySegment> entry(int key, String value) {
+        return new BaseEntry<>(key(key), MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MemorySegment key(int key) {
+        return MemorySegment.ofArray("key%05d".formatted(key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
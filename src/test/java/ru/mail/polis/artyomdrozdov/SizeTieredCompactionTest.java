@@ -0,0 +1,174 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SizeTieredCompactionTest {
+
+    // table sizes are about proportional to the number of keys
+    private static final int SMALL = 100;
+    private static final int MEDIUM = 1_000;
+    private static final int LARGE = 10_000;
+
+    @TempDir
+    Path dir;
+
+    private Config config;
+    private Manifest manifest;
+    private ValueLog valueLog;
+    private final List<SSTable> sstables = new ArrayList<>();
+    private long sequence;
+    private int nextKey;
+
+    @BeforeEach
+    void open() throws IOException {
+        config = new Config(dir, 1 << 20);
+        manifest = Manifest.open(config);
+        valueLog = ValueLog.load(config, List.of());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (SSTable sstable : sstables) {
+            sstable.file().release();
+        }
+        valueLog.release();
+        manifest.close();
+    }
+
+    @Test
+    void similarTablesAreMerged() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(4, 32, 2.0));
+        // deeper levels may only be left by the leveled strategy, they are never picked
+        table(1, SMALL);
+        table(0, LARGE);
+        SSTable first = table(0, SMALL);
+        SSTable second = table(0, SMALL);
+        SSTable third = table(0, SMALL);
+        assertNull(picker.pick(sstables));
+
+        SSTable fourth = table(0, SMALL);
+        CompactionPicker.Task task = picker.pick(sstables);
+        assertEquals(0, task.outputLevel());
+        assertEquals(List.of(first, second, third, fourth), task.inputs());
+    }
+
+    @Test
+    void tablesOfDifferentBucketsAreNotMerged() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(2, 32, 2.0));
+        table(0, SMALL);
+        table(0, MEDIUM);
+        table(0, SMALL);
+        table(0, LARGE);
+        table(0, MEDIUM);
+        assertNull(picker.pick(sstables));
+
+        // the longest run wins
+        SSTable medium = sstables.get(4);
+        SSTable next = table(0, MEDIUM);
+        SSTable last = table(0, MEDIUM);
+        assertEquals(List.of(medium, next, last), picker.pick(sstables).inputs());
+    }
+
+    @Test
+    void runIsLimitedByMaxThreshold() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(2, 3, 2.0));
+        for (int i = 0; i < 5; i++) {
+            table(0, SMALL);
+        }
+        assertEquals(sstables.subList(0, 3), picker.pick(sstables).inputs());
+    }
+
+    // nothing is similar, but the number of tables a read probes must stay bounded
+    @Test
+    void cheapestRunIsForcedAtMaxThreshold() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(2, 4, 1.5));
+        table(0, LARGE);
+        SSTable small = table(0, SMALL);
+        SSTable medium = table(0, MEDIUM);
+        assertNull(picker.pick(sstables));
+
+        table(0, 3 * MEDIUM);
+        CompactionPicker.Task task = picker.pick(sstables);
+        assertEquals(0, task.outputLevel());
+        assertEquals(List.of(small, medium), task.inputs());
+    }
+
+    // default ratio of 0.2
+    @Test
+    void tombstonesAreMergedWithOlderOverlappingTables() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(8, 32, 2.0));
+        table(0, SMALL);
+        SSTable second = table(0, SMALL);
+        SSTable third = table(0, SMALL);
+        // overlaps the second and the third tables only
+        nextKey = SMALL + SMALL / 2;
+        SSTable fewTombstones = table(0, SMALL, SMALL / 10);
+        assertNull(picker.pick(sstables));
+
+        nextKey = SMALL + SMALL / 2;
+        SSTable deletes = table(0, SMALL, SMALL / 2);
+        CompactionPicker.Task task = picker.pick(sstables);
+        assertEquals(0, task.outputLevel());
+        // the run starts from the oldest overlapping table, the ones in between are merged too
+        assertEquals(List.of(second, third, fewTombstones, deletes), task.inputs());
+    }
+
+    // tables of the leveled layout are never merged with level 0, so the tombstones over them are kept
+    @Test
+    void tombstonesOverOtherLevelsAreLeft() throws IOException {
+        CompactionPicker picker = new SizeTieredCompaction(config(4, 32, 2.0));
+        table(1, SMALL);
+        nextKey = 0;
+        table(0, SMALL, SMALL);
+        assertNull(picker.pick(sstables));
+    }
+
+    private Config config(int minThreshold, int maxThreshold, double bucketRatio) {
+        return Config.builder(dir, 1 << 20)
+                .compactionStrategy(Config.CompactionStrategy.SIZE_TIERED)
+                .sizeTieredMinThreshold(minThreshold)
+                .sizeTieredMaxThreshold(maxThreshold)
+                .sizeTieredBucketRatio(bucketRatio)
+                .build();
+    }
+
+    private SSTable table(int level, int keys) throws IOException {
+        return table(level, keys, 0);
+    }
+
+    // a table of the given number of keys, newer than the previous ones, the first ones are tombstones
+    private SSTable table(int level, int keys, int tombstones) throws IOException {
+        long tableId = manifest.nextFileId();
+        Path file = Storage.tableFile(config, tableId);
+        try (SSTableWriter writer = new SSTableWriter(config, manifest, file, keys, Set.of(), RateLimiter.UNLIMITED)) {
+            for (int i = 0; i < keys; i++) {
+                MemorySegment key = key(nextKey++);
+                writer.write(new BaseEntry<>(key, i < tombstones ? null : key));
+            }
+            writer.finish();
+        }
+        SSTable sstable = SSTable.open(new Manifest.Table(tableId, sequence++, level), MappedFile.map(file), valueLog);
+        sstables.add(sstable);
+        return sstable;
+    }
+
+    private static MemorySegment key(int i) {
+        return MemorySegment.ofArray("key%07d".formatted(i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,337 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StorageTest {
+
+    private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[0]);
+
+    @TempDir
+    Path dir;
+
+    private Config config;
+    private Manifest manifest;
+    private final List<Storage> versions = new ArrayList<>();
+
+    @BeforeEach
+    void open() throws IOException {
+        config = new Config(dir, 1 << 20);
+        manifest = Manifest.open(config);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (Storage version : versions) {
+            version.release();
+        }
+        manifest.close();
+    }
+
+    // a flush committed while a compaction of the same version runs must survive the compaction, and vice versa
+    @Test
+    void flushAndCompactionOfOneVersionAreBothKept() throws IOException {
+        Storage empty = version(Storage.load(config, manifest));
+        Storage first = version(empty.apply(config, save(config, entries("a", 0, 100))));
+        Storage second = version(first.apply(config, save(config, entries("b", 50, 150))));
+
+        Storage.Change compaction = compact(second);
+        Storage.Change flush = save(config, entries("c", 100, 200));
+
+        Storage flushFirst = version(version(second.apply(config, flush)).apply(config, compaction));
+        Storage compactionFirst = version(version(second.apply(config, compaction)).apply(config, flush));
+        Storage reloaded = version(Storage.load(config, manifest));
+        for (Storage storage : List.of(flushFirst, compactionFirst, reloaded)) {
+            // the compacted table takes place of the tables it replaced, older than the flushed one
+            assertEquals(2, storage.iterate(VERY_FIRST_KEY, null).size());
+            assertValues(storage, 0, 50, "a");
+            assertValues(storage, 50, 100, "b");
+            assertValues(storage, 100, 200, "c");
+            assertNull(storage.get(key(200)));
+        }
+
+        // the versions the changes were made against still read their own files
+        assertValues(first, 0, 100, "a");
+        assertNull(first.get(key(100)));
+        assertValues(second, 50, 150, "b");
+        assertEquals(2, second.iterate(VERY_FIRST_KEY, null).size());
+    }
+
+    // the compaction only marks the replaced files obsolete, the last release of a version holding them deletes them
+    @Test
+    void supersededFilesStayMappedWhilePinned() throws IOException {
+        Storage empty = Storage.load(config, manifest);
+        Storage first = empty.apply(config, save(config, entries("a", 0, 100)));
+        empty.release();
+        Storage second = first.apply(config, save(config, entries("b", 50, 150)));
+        first.release();
+        List<Path> files = dataFiles(dir);
+        assertEquals(2, files.size());
+
+        // a reader pins the version, then the dao state moves on to the compacted one
+        second.acquire();
+        Storage compacted = version(second.apply(config, compact(second)));
+        second.release();
+
+        for (Path file : files) {
+            assertTrue(Files.exists(file), file::toString);
+        }
+        assertValues(second, 0, 50, "a");
+        assertValues(second, 50, 150, "b");
+
+        second.release();
+        for (Path file : files) {
+            assertTrue(Files.notExists(file), file::toString);
+        }
+        assertThrows(RuntimeException.class, () -> second.get(key(0)));
+        assertValues(compacted, 0, 50, "a");
+        assertValues(compacted, 50, 150, "b");
+    }
+
+    // entries of a scan are slices of the mapped files, they keep the version until they become unreachable
+    @Test
+    void scanPinsVersionUntilUnreachable() throws Exception {
+        Config daoConfig = new Config(Files.createDirectory(dir.resolve("dao")), 1 << 20);
+        try (MemorySegmentDao dao = new MemorySegmentDao(daoConfig)) {
+            for (Entry<MemorySegment> entry : entries("a", 0, 100)) {
+                dao.upsert(entry);
+            }
+            dao.flush();
+            for (Entry<MemorySegment> entry : entries("b", 50, 150)) {
+                dao.upsert(entry);
+            }
+            dao.flush();
+            List<Path> files = dataFiles(daoConfig.basePath());
+            assertEquals(2, files.size());
+
+            Entry<MemorySegment> first = scanAndCompact(dao);
+            System.gc();
+            for (Path file : files) {
+                assertTrue(Files.exists(file), file::toString);
+            }
+            assertTrue(first.value().isMapped());
+            assertArrayEquals(value("a", 0).toByteArray(), first.value().toByteArray());
+            Reference.reachabilityFence(first);
+
+            first = null;
+            for (int attempt = 0; attempt < 100 && Files.exists(files.get(0)); attempt++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            for (Path file : files) {
+                assertTrue(Files.notExists(file), file::toString);
+            }
+            assertValues(dao, 0, 50, "a");
+            assertValues(dao, 50, 150, "b");
+        }
+    }
+
+    // merging the ranges one by one gives the same entries as a single merge: nothing is lost or duplicated
+    // at the split keys, whatever the number of ranges
+    @Test
+    void compactionRangesSplitInputsExactly() throws IOException {
+        Storage storage = version(Storage.load(config, manifest));
+        storage = version(storage.apply(config, save(config, entries("a", 0, 3000))));
+        storage = version(storage.apply(config, save(config, entries("b", 1000, 4000))));
+        storage = version(storage.apply(config, save(config, entries("c", 2000, 5000))));
+        List<Entry<MemorySegment>> expected = merge(storage, VERY_FIRST_KEY, null);
+        assertEquals(5000, expected.size());
+
+        assertEquals(List.of(), Storage.splitKeys(storage.sstables(), 1));
+        for (int rangesCount : new int[] {2, 3, 8, 100_000}) {
+            List<MemorySegment> splitKeys = Storage.splitKeys(storage.sstables(), rangesCount);
+            assertTrue(splitKeys.size() < rangesCount);
+            assertFalse(splitKeys.isEmpty());
+
+            List<Entry<MemorySegment>> ranges = new ArrayList<>();
+            for (int i = 0; i <= splitKeys.size(); i++) {
+                MemorySegment from = i == 0 ? VERY_FIRST_KEY : splitKeys.get(i - 1);
+                MemorySegment to = i == splitKeys.size() ? null : splitKeys.get(i);
+                List<Entry<MemorySegment>> range = merge(storage, from, to);
+                // split keys are increasing, so no range is empty
+                assertFalse(range.isEmpty());
+                ranges.addAll(range);
+            }
+            assertEquals(expected.size(), ranges.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i).key().toByteArray(), ranges.get(i).key().toByteArray());
+                assertArrayEquals(expected.get(i).value().toByteArray(), ranges.get(i).value().toByteArray());
+            }
+        }
+    }
+
+    // compacting the newer tables only must keep the tombstones hiding values of an older one
+    @Test
+    void tombstonesOverOlderValuesAreKept() throws IOException {
+        Storage storage = version(Storage.load(config, manifest));
+        storage = version(storage.apply(config, save(config, entries("a", 0, 100))));
+        storage = version(storage.apply(config, save(config, tombstones(0, 50))));
+        storage = version(storage.apply(config, save(config, entries("c", 200, 300))));
+
+        List<SSTable> newer = storage.sstables().subList(1, 3);
+        storage = version(storage.apply(config, compact(config, storage, newer, 0, Long.MAX_VALUE)));
+        assertEquals(2, storage.sstables().size());
+        assertEquals(50, storage.sstables().get(1).tombstonesCount());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(storage.get(key(i)).isTombstone());
+        }
+        assertValues(storage, 50, 100, "a");
+        assertValues(storage, 200, 300, "c");
+
+        // nothing older is left
+        storage = version(storage.apply(config, compact(storage)));
+        assertEquals(1, storage.sstables().size());
+        assertEquals(0, storage.sstables().get(0).tombstonesCount());
+        assertEquals(150, storage.sstables().get(0).recordsCount());
+        assertNull(storage.get(key(0)));
+        assertValues(storage, 50, 100, "a");
+    }
+
+    // a step triggered by tombstones either drops them or moves them closer to the values they hide,
+    // so the steps end and leave no tombstones
+    @ParameterizedTest
+    @EnumSource(Config.CompactionStrategy.class)
+    void tombstoneCompactionsConverge(Config.CompactionStrategy strategy) throws IOException {
+        Config strategyConfig = Config.builder(dir, 1 << 20).compactionStrategy(strategy).build();
+        CompactionPicker picker = CompactionPicker.create(strategyConfig);
+        Storage storage = version(Storage.load(strategyConfig, manifest));
+        storage = version(storage.apply(strategyConfig, save(strategyConfig, entries("a", 0, 1000))));
+        storage = version(storage.apply(strategyConfig, save(strategyConfig, entries("b", 2000, 3000))));
+        // the leveled tombstones are pushed down twice, size-tiered ones are merged with the older table
+        int bottomLevel = strategy == Config.CompactionStrategy.LEVELED ? 2 : 0;
+        storage = version(storage.apply(strategyConfig, compact(
+                strategyConfig, storage, storage.sstables(), bottomLevel, picker.maxTableSize())));
+        storage = version(storage.apply(strategyConfig, save(strategyConfig, tombstones(0, 500))));
+        storage = version(storage.apply(strategyConfig, save(strategyConfig, tombstones(2000, 2100))));
+
+        int steps = 0;
+        for (CompactionPicker.Task task = picker.pick(storage.sstables());
+                task != null;
+                task = picker.pick(storage.sstables())) {
+            assertTrue(++steps <= 10, "compaction steps do not converge");
+            storage = version(storage.apply(strategyConfig, compact(
+                    strategyConfig, storage, task.inputs(), task.outputLevel(), picker.maxTableSize())));
+        }
+
+        for (SSTable sstable : storage.sstables()) {
+            assertEquals(0, sstable.tombstonesCount());
+        }
+        assertNull(storage.get(key(0)));
+        assertNull(storage.get(key(2000)));
+        assertValues(storage, 500, 1000, "a");
+        assertValues(storage, 2100, 3000, "b");
+    }
+
+    private static List<Entry<MemorySegment>> merge(Storage storage, MemorySegment from, MemorySegment to) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        MergeIterator.of(storage.iterate(from, to), EntryKeyComparator.INSTANCE).forEachRemaining(entries::add);
+        return entries;
+    }
+
+    // the exhausted iterator is unreachable after the return, only the first entry is kept
+    private static Entry<MemorySegment> scanAndCompact(MemorySegmentDao dao) throws IOException {
+        Iterator<Entry<MemorySegment>> iterator = dao.all();
+        Entry<MemorySegment> first = iterator.next();
+        dao.compact();
+        int count = 1;
+        for (; iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        assertEquals(150, count);
+        return first;
+    }
+
+    // a full compaction into a single table
+    private Storage.Change compact(Storage storage) throws IOException {
+        return compact(config, storage, storage.sstables(), 1, Long.MAX_VALUE);
+    }
+
+    private Storage.Change compact(
+            Config storageConfig,
+            Storage storage,
+            List<SSTable> inputs,
+            int outputLevel,
+            long maxTableSize) throws IOException {
+        return Storage.compact(storageConfig, manifest, storage, inputs, outputLevel, maxTableSize, RateLimiter.UNLIMITED);
+    }
+
+    private Storage.Change save(Config storageConfig, List<Entry<MemorySegment>> entries) throws IOException {
+        return Storage.save(storageConfig, manifest, entries, RateLimiter.UNLIMITED);
+    }
+
+    private static List<Path> dataFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("data")).toList();
+        }
+    }
+
+    private Storage version(Storage storage) {
+        versions.add(storage);
+        return storage;
+    }
+
+    private static void assertValues(Storage storage, int from, int to, String prefix) {
+        for (int i = from; i < to; i++) {
+            assertValue(storage.get(key(i)), prefix, i);
+        }
+    }
+
+    private static void assertValues(MemorySegmentDao dao, int from, int to, String prefix) {
+        for (int i = from; i < to; i++) {
+            assertValue(dao.get(key(i)), prefix, i);
+        }
+    }
+
+    private static void assertValue(Entry<MemorySegment> entry, String prefix, int i) {
+        assertArrayEquals(value(prefix, i).toByteArray(), entry.value().toByteArray());
+    }
+
+    private static List<Entry<MemorySegment>> entries(String prefix, int from, int to) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new BaseEntry<>(key(i), value(prefix, i)));
+        }
+        return entries;
+    }
+
+    private static List<Entry<MemorySegment>> tombstones(int from, int to) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new BaseEntry<>(key(i), null));
+        }
+        return entries;
+    }
+
+    private static MemorySegment key(int i) {
+        return MemorySegment.ofArray("key%05d".formatted(i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MemorySegment value(String prefix, int i) {
+        return MemorySegment.ofArray((prefix + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
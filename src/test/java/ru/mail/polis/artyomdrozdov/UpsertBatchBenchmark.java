@@ -0,0 +1,102 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+// Entries per second written by single upserts against batches of several sizes, for every write-ahead log mode.
+// Not a test: run main() with [threads] [entries per thread] [directory].
+final class UpsertBatchBenchmark {
+
+    private static final int KEY_SIZE = 16;
+    private static final int VALUE_SIZE = 100;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000};
+
+    private UpsertBatchBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        Path base = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("batch");
+        // the first runs would pay for the compilation otherwise
+        for (int batchSize : BATCH_SIZES) {
+            Path dir = Files.createDirectories(base.resolve("warmup-" + batchSize));
+            try (MemorySegmentDao dao = new MemorySegmentDao(Config.builder(dir, 16 * 1024 * 1024).build())) {
+                run(dao, threads, entries / 4, batchSize);
+            }
+            delete(dir);
+        }
+        for (Config.WalDurability durability : Config.WalDurability.values()) {
+            for (int batchSize : BATCH_SIZES) {
+                Path dir = Files.createDirectories(base.resolve(durability + "-" + batchSize));
+                Config config = Config.builder(dir, 16 * 1024 * 1024).walDurability(durability).build();
+                // SYNC single upserts wait for a force each, so they get fewer entries
+                int perThread = durability == Config.WalDurability.SYNC && batchSize == 1 ? entries / 20 : entries;
+                double rate;
+                try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+                    rate = run(dao, threads, perThread, batchSize);
+                }
+                System.out.printf("%-5s threads %2d, batch %4d: %8.0f entries/s%n",
+                        durability, threads, batchSize, rate);
+                delete(dir);
+            }
+        }
+    }
+
+    private static double run(MemorySegmentDao dao, int threads, int perThread, int batchSize)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<Entry<MemorySegment>> batch = new ArrayList<>(batchSize);
+                for (int i = 0; i < perThread; i++) {
+                    byte[] key = new byte[KEY_SIZE];
+                    random.nextBytes(key);
+                    Entry<MemorySegment> entry = new BaseEntry<>(
+                            MemorySegment.ofArray(key),
+                            MemorySegment.ofArray(new byte[VALUE_SIZE])
+                    );
+                    if (batchSize == 1) {
+                        dao.upsert(entry);
+                        continue;
+                    }
+                    batch.add(entry);
+                    if (batch.size() == batchSize) {
+                        dao.upsertBatch(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    dao.upsertBatch(batch);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) threads * perThread * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpsertBatchTest {
+
+    private static final int KEYS = 50;
+    private static final int BATCHES = 2_000;
+    private static final int READERS = 3;
+
+    @TempDir
+    Path dir;
+
+    // every batch writes all the keys with its number, a reader must find a single number across the keys,
+    // memtables are flushed while the batches go, so reads cross memtables and tables too
+    @Test
+    void readersSeeWholeBatches() throws Exception {
+        Config config = Config.builder(dir, 64 * 1024).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            assertSingleBatch(dao);
+                            assertSingleBatchByKeys(dao);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            try {
+                for (int batch = 1; batch <= BATCHES && failure.get() == null; batch++) {
+                    List<Entry<MemorySegment>> entries = new ArrayList<>(KEYS);
+                    for (int key = 0; key < KEYS; key++) {
+                        // tombstones of odd batches are seen as missing keys
+                        entries.add(entry(key(key), batch % 2 == 0 ? value(batch, key) : null));
+                    }
+                    dao.upsertBatch(entries);
+                }
+            } finally {
+                done.set(true);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertSingleBatch(dao);
+        }
+    }
+
+    @Test
+    void failedBatchIsNeverSeen() throws Exception {
+        Config config = Config.builder(dir, 1024 * 1024).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            dao.upsert(entry("a", "before"));
+            // the key of the last entry fails the batch after the first entries are applied
+            List<Entry<MemorySegment>> failing = new ArrayList<>();
+            failing.add(entry("a", "failed"));
+            failing.add(entry("b", "failed"));
+            failing.add(new BaseEntry<>(null, segment("failed")));
+            assertThrows(NullPointerException.class, () -> dao.upsertBatch(failing));
+            assertFailedBatchHidden(dao);
+
+            // the next batch is published with a greater number, which does not reveal the failed one
+            dao.upsertBatch(List.of(entry("c", "after")));
+            assertFailedBatchHidden(dao);
+            assertEquals("after", string(dao.get(segment("c")).value()));
+            dao.flush();
+            assertFailedBatchHidden(dao);
+        }
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            assertFailedBatchHidden(dao);
+            assertEquals("after", string(dao.get(segment("c")).value()));
+        }
+    }
+
+    private static void assertFailedBatchHidden(MemorySegmentDao dao) {
+        assertEquals("before", string(dao.get(segment("a")).value()));
+        assertNull(dao.get(segment("b")));
+        Iterator<Entry<MemorySegment>> all = dao.get(null, null);
+        assertEquals("a", string(all.next().key()));
+        while (all.hasNext()) {
+            assertTrue(!"b".equals(string(all.next().key())));
+        }
+    }
+
+    private static void assertSingleBatch(MemorySegmentDao dao) {
+        Iterator<Entry<MemorySegment>> all = dao.get(null, null);
+        if (!all.hasNext()) {
+            return;
+        }
+        String batch = batchOf(all.next());
+        int keys = 1;
+        while (all.hasNext()) {
+            assertEquals(batch, batchOf(all.next()));
+            keys++;
+        }
+        assertEquals(KEYS, keys);
+    }
+
+    // single gets take snapshots of their own, so a later get may see a later batch but never an earlier one
+    private static void assertSingleBatchByKeys(MemorySegmentDao dao) {
+        int previous = 0;
+        for (int key = 0; key < KEYS; key++) {
+            Entry<MemorySegment> entry = dao.get(segment(key(key)));
+            if (entry != null) {
+                int batch = Integer.parseInt(batchOf(entry));
+                assertTrue(batch >= previous, batch + " after " + previous);
+                previous = batch;
+            }
+        }
+    }
+
+    private static String batchOf(Entry<MemorySegment> entry) {
+        String value = string(entry.value());
+        return value.substring(0, value.indexOf(':'));
+    }
+
+    private static String key(int key) {
+        return String.format("key%04d", key);
+    }
+
+    private static String value(int batch, int key) {
+        return batch + ":" + key;
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value) {
+        return new BaseEntry<>(segment(key), value == null ? null : segment(value));
+    }
+
+    private static MemorySegment segment(String s) {
+        return MemorySegment.ofArray(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValueLogGcTest {
+
+    private static final int HOT_KEYS = 200;
+    private static final int ROUNDS = 300;
+    private static final int VALUE_SIZE = 500;
+    private static final int ROUNDS_PER_COMPACTION = 10;
+
+    @TempDir
+    Path dir;
+
+    // every round overwrites the hot keys, adds a cold key and is flushed to a value log file of its own,
+    // so every file keeps some live values and is freed only if compactions move them out
+    @Test
+    void overwritesDoNotPileUpValueLogFiles() throws IOException {
+        // no background compactions
+        Config config = Config.builder(dir, 4 * 1024 * 1024)
+                .valueSeparationThresholdBytes(64)
+                .levelZeroCompactionTrigger(Integer.MAX_VALUE)
+                .build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int key = 0; key < HOT_KEYS; key++) {
+                    dao.upsert(entry("hot" + key, round));
+                }
+                dao.upsert(entry("cold" + round, round));
+                dao.flush();
+                if (round % ROUNDS_PER_COMPACTION == ROUNDS_PER_COMPACTION - 1) {
+                    dao.compact();
+                }
+            }
+        }
+
+        long liveBytes = (long) (HOT_KEYS + ROUNDS) * VALUE_SIZE;
+        long valueLogBytes = 0;
+        int valueLogFiles = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "vlog*")) {
+            for (Path file : files) {
+                valueLogBytes += Files.size(file);
+                valueLogFiles++;
+            }
+        }
+        String stats = valueLogFiles + " files of " + valueLogBytes + " bytes for " + liveBytes + " live bytes";
+        // Referenced bytes are an upper bound of live bytes, so the files of the rounds since the previous compaction
+        // look fully live to the last one. Every older file left is at least half live.
+        // Without relocation it is a hundred times the live bytes.
+        long roundBytes = (HOT_KEYS + 1L) * VALUE_SIZE;
+        assertTrue(valueLogBytes < liveBytes * 2 + roundBytes * ROUNDS_PER_COMPACTION, stats);
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int key = 0; key < HOT_KEYS; key++) {
+                assertValue(dao, "hot" + key, ROUNDS - 1);
+            }
+            for (int round = 0; round < ROUNDS; round++) {
+                assertValue(dao, "cold" + round, round);
+            }
+        }
+    }
+
+    // flushes are smaller than the threshold, so most value log files are merged as too small
+    @ParameterizedTest
+    @EnumSource(Config.CompactionStrategy.class)
+    void backgroundCompactionsCollectValueLogs(Config.CompactionStrategy strategy) throws IOException {
+        Config config = Config.builder(dir, 256 * 1024)
+                .valueSeparationThresholdBytes(64)
+                .compactionStrategy(strategy)
+                .build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int key = 0; key < HOT_KEYS; key++) {
+                    dao.upsert(entry("hot" + key, round));
+                }
+                dao.upsert(entry("cold" + round, round));
+                dao.flush();
+            }
+        }
+
+        long liveBytes = (long) (HOT_KEYS + ROUNDS) * VALUE_SIZE;
+        long valueLogBytes = 0;
+        int valueLogFiles = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "vlog*")) {
+            for (Path file : files) {
+                valueLogBytes += Files.size(file);
+                valueLogFiles++;
+            }
+        }
+        String stats = valueLogFiles + " files of " + valueLogBytes + " bytes for " + liveBytes + " live bytes";
+        // a relocated file is at least half live, the files of tables waiting for a compaction may be less,
+        // without relocation it is tens of times the live bytes
+        assertTrue(valueLogBytes < liveBytes * 6, stats);
+        // files are merged until they hold half of a flushed table
+        assertTrue(valueLogFiles < 2 * liveBytes / (config.flushThresholdBytes() / 2) + 8, stats);
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int key = 0; key < HOT_KEYS; key++) {
+                assertValue(dao, "hot" + key, ROUNDS - 1);
+            }
+            for (int round = 0; round < ROUNDS; round++) {
+                assertValue(dao, "cold" + round, round);
+            }
+        }
+    }
+
+    private static Entry<MemorySegment> entry(String key, int round) {
+        return new BaseEntry<>(key(key), MemorySegment.ofArray(value(round)));
+    }
+
+    private static void assertValue(MemorySegmentDao dao, String key, int round) {
+        Entry<MemorySegment> entry = dao.get(key(key));
+        assertNotNull(entry, key);
+        assertArrayEquals(value(round), entry.value().toByteArray(), key);
+    }
+
+    private static MemorySegment key(String key) {
+        return MemorySegment.ofArray(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] value(int round) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) round);
+        return value;
+    }
+}
@@ -0,0 +1,305 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WriteAheadLogTest {
+
+    private static final long FLUSH_THRESHOLD = 64 * 1024 * 1024;
+    private static final int KEYS = 1000;
+    private static final int BATCH_SIZE = 10;
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path crashed;
+
+    @Test
+    void concurrentWritesOfKeyReplayToTheValueReadersSaw() throws Exception {
+        int threads = 8;
+        int keys = 4;
+        int writes = 10_000;
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).walDurability(Config.WalDurability.SYNC).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread writer = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < writes; i++) {
+                            dao.upsert(entry(key(i % keys), thread + ":" + i));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+
+            // every upsert has returned, so all of them are forced to the log
+            crash(dir, crashed);
+            try (MemorySegmentDao recovered = new MemorySegmentDao(
+                    Config.builder(crashed, FLUSH_THRESHOLD).walDurability(Config.WalDurability.SYNC).build())) {
+                for (int k = 0; k < keys; k++) {
+                    Entry<MemorySegment> seen = dao.get(segment(key(k)));
+                    assertNotNull(seen);
+                    assertEquals(string(seen.value()), string(recovered.get(segment(key(k))).value()), key(k));
+                }
+            }
+        }
+    }
+
+    // single upserts, tombstones of every tenth key and a batch overwriting the first keys survive a crash
+    // once they are forced, with NONE nothing is logged and the memtable is lost
+    @ParameterizedTest
+    @EnumSource(Config.WalDurability.class)
+    void writesSurviveCrash(Config.WalDurability durability) throws Exception {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).walDurability(durability).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            writeAll(dao);
+            if (durability == Config.WalDurability.ASYNC) {
+                // a few sync intervals
+                Thread.sleep(config.walSyncIntervalMillis() * 20);
+            }
+            crash(dir, crashed);
+        }
+
+        try (MemorySegmentDao recovered = new MemorySegmentDao(
+                Config.builder(crashed, FLUSH_THRESHOLD).walDurability(durability).build())) {
+            for (int i = 0; i < KEYS; i++) {
+                Entry<MemorySegment> entry = recovered.get(segment(key(i)));
+                String expected = durability == Config.WalDurability.NONE ? null : expectedValue(i);
+                if (expected == null) {
+                    assertNull(entry, key(i));
+                } else {
+                    assertEquals(expected, string(entry.value()), key(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void tornBatchAtTheEndIsDroppedAsAWhole() throws Exception {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).walDurability(Config.WalDurability.SYNC).build();
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            writeAll(dao);
+            crash(dir, crashed);
+        }
+        Path log = single(crashed, "wal*.log");
+        truncate(log, Files.size(log) - 1);
+
+        try (MemorySegmentDao recovered = new MemorySegmentDao(
+                Config.builder(crashed, FLUSH_THRESHOLD).walDurability(Config.WalDurability.SYNC).build())) {
+            for (int i = 0; i < KEYS; i++) {
+                Entry<MemorySegment> entry = recovered.get(segment(key(i)));
+                if (i % 10 == 0) {
+                    assertNull(entry, key(i));
+                } else {
+                    assertEquals(value(i), string(entry.value()), key(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void replayStopsAtTornOrCorruptedLastRecord() throws Exception {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).build();
+        WriteAheadLog wal = WriteAheadLog.open(config);
+        long lastRecordStart;
+        long segmentId;
+        try (WriteAheadLog.Segment segment = wal.newSegment()) {
+            segmentId = segment.id;
+            for (int i = 0; i < KEYS - 1; i++) {
+                segment.append(entry(key(i), value(i)));
+            }
+            lastRecordStart = segment.appended();
+            segment.sync(segment.append(entry(key(KEYS - 1), null)));
+        }
+        Path log = single(dir, "wal*.log");
+        long size = Files.size(log);
+
+        // every cut of the last record: within its header, its checksum and its payload
+        for (long tornSize = size - 1; tornSize > lastRecordStart; tornSize -= 5) {
+            Path torn = Files.createTempDirectory(dir, "torn");
+            Files.copy(log, torn.resolve(log.getFileName()));
+            truncate(torn.resolve(log.getFileName()), tornSize);
+            assertReplayed(Config.builder(torn, FLUSH_THRESHOLD).build(), segmentId, lastRecordStart, KEYS - 1);
+        }
+
+        Path corrupted = Files.createTempDirectory(dir, "corrupted");
+        Files.copy(log, corrupted.resolve(log.getFileName()));
+        try (FileChannel channel = FileChannel.open(corrupted.resolve(log.getFileName()),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, size - 1);
+            lastByte.put(0, (byte) (lastByte.get(0) ^ 1)).rewind();
+            channel.write(lastByte, size - 1);
+        }
+        assertReplayed(Config.builder(corrupted, FLUSH_THRESHOLD).build(), segmentId, lastRecordStart, KEYS - 1);
+
+        assertReplayed(config, segmentId, size, KEYS);
+    }
+
+    @Test
+    void rangesOfRecordsReplayEveryEntryOnce() throws Exception {
+        Config config = Config.builder(dir, FLUSH_THRESHOLD).build();
+        WriteAheadLog wal = WriteAheadLog.open(config);
+        List<Long> positions = new ArrayList<>();
+        long segmentId;
+        try (WriteAheadLog.Segment segment = wal.newSegment()) {
+            segmentId = segment.id;
+            // the second half is appended in batches, every entry of a batch has the position of its record
+            for (int i = 0; i < KEYS / 2; i++) {
+                positions.add(segment.append(entry(key(i), value(i))));
+            }
+            for (int i = KEYS / 2; i < KEYS; i += BATCH_SIZE) {
+                List<Entry<MemorySegment>> batch = new ArrayList<>();
+                for (int k = i; k < i + BATCH_SIZE; k++) {
+                    batch.add(entry(key(k), value(k)));
+                }
+                long position = segment.append(batch);
+                for (int k = 0; k < BATCH_SIZE; k++) {
+                    positions.add(position);
+                }
+            }
+            segment.sync(segment.appended());
+        }
+
+        try (WriteAheadLog.Replay replay = WriteAheadLog.open(config).openReplay(segmentId)) {
+            for (int ranges = 1; ranges <= 8; ranges++) {
+                long[] bounds = replay.split(ranges);
+                assertEquals(0, bounds[0]);
+                assertEquals(replay.validSize(), bounds[bounds.length - 1]);
+                assertEquals(ranges + 1, bounds.length);
+                List<String> keys = new ArrayList<>();
+                List<Long> logPositions = new ArrayList<>();
+                for (int range = 0; range + 1 < bounds.length; range++) {
+                    replay.forEach(bounds[range], bounds[range + 1], (entry, logPosition) -> {
+                        keys.add(string(entry.key()));
+                        logPositions.add(logPosition);
+                    });
+                }
+                assertEquals(KEYS, keys.size());
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals(key(i), keys.get(i));
+                    // the position append() returned for the entry
+                    assertEquals(positions.get(i), logPositions.get(i));
+                }
+            }
+        }
+    }
+
+    private static void assertReplayed(Config config, long segmentId, long validSize, int count) throws IOException {
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog.Replay replay = WriteAheadLog.open(config).openReplay(segmentId)) {
+            assertEquals(validSize, replay.validSize());
+            replay.forEach(0, replay.validSize(), (entry, logPosition) -> replayed.add(string(entry.key())));
+        }
+        assertEquals(count, replayed.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(key(i), replayed.get(i));
+        }
+    }
+
+    // the last write is a batch, so a torn tail drops all of it and keeps the single upserts
+    private static void writeAll(MemorySegmentDao dao) {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(entry(key(i), value(i)));
+        }
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.upsert(entry(key(i), null));
+        }
+        List<Entry<MemorySegment>> batch = new ArrayList<>();
+        for (int i = 1; i <= BATCH_SIZE; i++) {
+            batch.add(entry(key(i), "batch" + i));
+        }
+        dao.upsertBatch(batch);
+    }
+
+    // null for a deleted key
+    private static String expectedValue(int i) {
+        if (i >= 1 && i <= BATCH_SIZE) {
+            return "batch" + i;
+        }
+        return i % 10 == 0 ? null : value(i);
+    }
+
+    private static Path single(Path dir, String glob) throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+            files.forEach(found::add);
+        }
+        assertEquals(1, found.size(), found.toString());
+        return found.get(0);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    // copies the files of an open dao as they are, which is what a crash leaves
+    private static void crash(Path from, Path to) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+            for (Path file : files) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("key%05d", i);
+    }
+
+    private static String value(int i) {
+        return "value" + i;
+    }
+
+    private static Entry<MemorySegment> entry(String key, String value) {
+        return new BaseEntry<>(segment(key), value == null ? null : segment(value));
+    }
+
+    private static MemorySegment segment(String s) {
+        return MemorySegment.ofArray(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,149 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Upsert throughput of memtable writers let in by WriterGate against the read lock of a ReentrantReadWriteLock.
+// A flusher swaps the memtable every SWAP_UPSERTS writes: it closes the gate and waits for it to drain,
+// or takes the write lock.
+// Not a test: run main() with [threads] [upserts].
+final class WriterGateBenchmark {
+
+    private static final int KEY_SIZE = 16;
+    private static final int VALUE_SIZE = 100;
+    private static final int SWAP_UPSERTS = 50_000;
+    private static final int RUNS = 5;
+
+    private WriterGateBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int upserts = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        for (int run = 0; run < RUNS; run++) {
+            report("WriterGate", threads, upserts, new GateMemtable());
+            report("ReentrantReadWriteLock", threads, upserts, new LockedMemtable());
+        }
+    }
+
+    private static void report(String name, int threads, int upserts, Memtable memtable)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                byte[] key = new byte[KEY_SIZE];
+                MemorySegment keySegment = MemorySegment.ofArray(key);
+                MemorySegment value = MemorySegment.ofArray(new byte[VALUE_SIZE]);
+                for (int i = 0; i < upserts / threads; i++) {
+                    random.nextBytes(key);
+                    memtable.upsert(keySegment, value);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - start;
+        memtable.close();
+        System.out.printf("%-22s threads %2d: %8.0f ops/s, %d swaps%n",
+                name, threads, upserts * 1e9 / nanos, memtable.swaps());
+    }
+
+    private abstract static class Memtable {
+        private final AtomicInteger upserts = new AtomicInteger();
+
+        abstract void upsert(MemorySegment key, MemorySegment value);
+
+        abstract void close();
+
+        // the writer which hits the threshold swaps the list as a flush would
+        final boolean shouldSwap() {
+            return upserts.incrementAndGet() % SWAP_UPSERTS == 0;
+        }
+
+        final int swaps() {
+            return upserts.get() / SWAP_UPSERTS;
+        }
+    }
+
+    private static final class GateMemtable extends Memtable {
+        private volatile Current current = new Current();
+
+        @Override
+        void upsert(MemorySegment key, MemorySegment value) {
+            while (true) {
+                Current memory = current;
+                int ticket = memory.writers.enter();
+                if (ticket < 0) {
+                    continue;
+                }
+                try {
+                    memory.list.put(key, value, 0, 0);
+                } finally {
+                    memory.writers.exit(ticket);
+                }
+                break;
+            }
+            if (shouldSwap()) {
+                Current old = current;
+                current = new Current();
+                old.writers.close();
+                old.writers.awaitClosed();
+                old.list.close();
+            }
+        }
+
+        @Override
+        void close() {
+            current.list.close();
+        }
+
+        private static final class Current {
+            final WriterGate writers = new WriterGate();
+            final ArenaSkipList list = new ArenaSkipList((long) SWAP_UPSERTS * (KEY_SIZE + VALUE_SIZE));
+        }
+    }
+
+    private static final class LockedMemtable extends Memtable {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private ArenaSkipList list = newList();
+
+        @Override
+        void upsert(MemorySegment key, MemorySegment value) {
+            lock.readLock().lock();
+            try {
+                list.put(key, value, 0, 0);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (shouldSwap()) {
+                lock.writeLock().lock();
+                try {
+                    list.close();
+                    list = newList();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            list.close();
+        }
+
+        private static ArenaSkipList newList() {
+            return new ArenaSkipList((long) SWAP_UPSERTS * (KEY_SIZE + VALUE_SIZE));
+        }
+    }
+}
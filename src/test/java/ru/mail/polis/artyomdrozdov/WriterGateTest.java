@@ -0,0 +1,62 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriterGateTest {
+
+    @Test
+    void closedGateLetsNobodyIn() {
+        WriterGate gate = new WriterGate();
+        gate.close();
+        assertEquals(-1, gate.enter());
+        // nobody is inside, so it returns at once
+        gate.awaitClosed();
+    }
+
+    @Test
+    void waiterIsReleasedByTheLastWriterLeaving() throws Exception {
+        WriterGate gate = new WriterGate();
+        int first = gate.enter();
+        int second = gate.enter();
+        assertTrue(first >= 0 && second >= 0);
+
+        CountDownLatch closed = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            gate.awaitClosed();
+            closed.countDown();
+        });
+        waiter.start();
+        gate.close();
+
+        // long enough for the waiter to stop spinning and park
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        gate.exit(first);
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        gate.exit(second);
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    void waiterIsReleasedByClose() throws Exception {
+        WriterGate gate = new WriterGate();
+        CountDownLatch closed = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            gate.awaitClosed();
+            closed.countDown();
+        });
+        waiter.start();
+
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        gate.close();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        waiter.join();
+    }
+}